@@ -0,0 +1,466 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rough before/after timings for the database layer. Each test runs against a scratch database
+ * so the app's real data is never touched; results are written to logcat under "DbBenchmark".
+ * Timings depend on the device and whatever else it is doing, so they are only logged; the
+ * assertions check results, sizes and query plans.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseBenchmarkTest {
+
+    private static final String TAG = "DbBenchmark";
+    private static final String DATABASE_NAME = "benchmark.db";
+
+    private Context context;
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        databaseHelper = new DatabaseHelper(context, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void sharedConnection_isCheaperThanOpenClosePerCall() {
+        final int calls = 200;
+        for (int i = 0; i < 100; i++) {
+            databaseHelper.addMessage(new Message("hello " + i, "alice", "bob", i, Message.MessageType.TEXT));
+        }
+
+        // Old behaviour: every call opened the file and closed it again afterwards.
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < calls; i++) {
+            databaseHelper.getLastMessage("alice", "bob");
+            databaseHelper.close();
+        }
+        long perCallNanos = (SystemClock.elapsedRealtimeNanos() - start) / calls;
+
+        // New behaviour: the connection stays open between calls.
+        databaseHelper.getLastMessage("alice", "bob");
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < calls; i++) {
+            databaseHelper.getLastMessage("alice", "bob");
+        }
+        long sharedNanos = (SystemClock.elapsedRealtimeNanos() - start) / calls;
+
+        Log.i(TAG, "getLastMessage open/close per call: " + perCallNanos / 1000 + "us, shared connection: "
+                + sharedNanos / 1000 + "us");
+        assertEquals("hello 99", databaseHelper.getLastMessage("alice", "bob").getContent());
+    }
+
+    @Test
+    public void conversationQueries_useConversationIndexOnMillionRows() {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        long me = addUser(db, "me");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 0 UNION ALL SELECT i + 1 FROM n WHERE i < 999) "
+                + "INSERT INTO user (user_name) SELECT 'user' || i FROM n");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < 1000000) "
+                + "INSERT INTO message (message_content, sender_id, receiver_id, timestamp, message_type, conversation_id) "
+                + "SELECT 'message ' || n.i, u.user_id, " + me + ", n.i, 0, "
+                + "(MIN(u.user_id, " + me + ") << 32) | MAX(u.user_id, " + me + ") "
+                + "FROM n JOIN user u ON u.user_name = 'user' || (n.i % 1000)");
+        db.execSQL("ANALYZE");
+        Log.i(TAG, "Seeded 1M messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        // The statements DatabaseHelper runs, with arguments for a key in the middle of a conversation.
+        String conversationId = String.valueOf(DatabaseHelper.conversationId(addUser(db, "user42"), me));
+        String[] keyset = {conversationId, "500042", "500042", "500042"};
+        assertReadsConversationIndex(db, "USING INDEX", DatabaseHelper.SQL_MESSAGES, conversationId);
+        assertReadsConversationIndex(db, "USING INDEX", DatabaseHelper.SQL_MESSAGES_BEFORE, append(keyset, "50"));
+        assertReadsConversationIndex(db, "USING INDEX", DatabaseHelper.SQL_MESSAGES_AFTER, append(keyset, "50"));
+        assertReadsConversationIndex(db, "USING INDEX", DatabaseHelper.SQL_LAST_MESSAGE, conversationId);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        Message last = databaseHelper.getLastMessage("me", "user42");
+        Log.i(TAG, "getLastMessage on 1M rows: " + (SystemClock.elapsedRealtimeNanos() - start) / 1000 + "us");
+        assertNotNull(last);
+    }
+
+    @Test
+    public void send_isConstantTimeOnLargeThread() {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        long alice = addUser(db, "alice");
+        long bob = addUser(db, "bob");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < 50000) "
+                + "INSERT INTO message (message_content, sender_id, receiver_id, timestamp, message_type, conversation_id) "
+                + "SELECT 'message ' || i, " + alice + ", " + bob + ", i, 0, "
+                + DatabaseHelper.conversationId(alice, bob) + " FROM n");
+        final int sends = 20;
+
+        // Old path: insert, then reload the whole conversation for the adapter.
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < sends; i++) {
+            databaseHelper.addMessage(new Message("reload " + i, "alice", "bob", 100000 + i, Message.MessageType.TEXT));
+            databaseHelper.getMessages("alice", "bob");
+        }
+        long reloadNanos = (SystemClock.elapsedRealtimeNanos() - start) / sends;
+
+        // New path: insert and append the returned row to the loaded window.
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < sends; i++) {
+            Message message = new Message("append " + i, "alice", "bob", 200000 + i, Message.MessageType.TEXT);
+            assertTrue(databaseHelper.addMessage(message) > 0);
+        }
+        long appendNanos = (SystemClock.elapsedRealtimeNanos() - start) / sends;
+
+        Log.i(TAG, "send on 50k thread, reload: " + reloadNanos / 1000 + "us, append: " + appendNanos / 1000 + "us");
+    }
+
+    @Test
+    public void chatList_singleQueryBeatsPerUserLookups() {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < 10000) "
+                + "INSERT INTO user (user_name, user_password) SELECT 'user' || i, 'secret' FROM n");
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= 10000; i += 3) {
+                databaseHelper.addMessage(new Message("hi " + i, "me", "user" + i, i, Message.MessageType.TEXT));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Old path: one getLastMessage per user, then a sort in Java.
+        long start = SystemClock.elapsedRealtime();
+        List<User> users = databaseHelper.getAllUsers();
+        for (User user : users) {
+            Message lastMessage = databaseHelper.getLastMessage("me", user.getName());
+            if (lastMessage != null) {
+                user.setLastMessageTimestamp(lastMessage.getTimestamp());
+            }
+        }
+        Collections.sort(users, (u1, u2) -> Long.compare(u2.getLastMessageTimestamp(), u1.getLastMessageTimestamp()));
+        long perUserMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        List<User> summaries = databaseHelper.getConversationSummaries("me");
+        long summaryMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "chat list for 10k users, per-user lookups: " + perUserMillis + "ms, summary query: "
+                + summaryMillis + "ms");
+        assertEquals(10000, summaries.size());
+        assertEquals("user9997", summaries.get(0).getName());
+    }
+
+    @Test
+    public void batchInsert_beatsPerRowInserts() {
+        final int rows = 20000;
+        List<Message> perRow = new ArrayList<>(rows);
+        List<Message> batched = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            perRow.add(new Message("single " + i, "alice", "bob", i, Message.MessageType.TEXT));
+            batched.add(new Message("batch " + i, "carol", "dave", i, Message.MessageType.TEXT));
+        }
+
+        // Old path: one addMessage, and so one commit, per row.
+        long start = SystemClock.elapsedRealtime();
+        for (Message message : perRow) {
+            databaseHelper.addMessage(message);
+        }
+        long perRowMillis = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        // New path: one compiled statement, committed per batch.
+        List<Integer> progress = new ArrayList<>();
+        start = SystemClock.elapsedRealtime();
+        int inserted = databaseHelper.addMessages(batched, DatabaseHelper.DEFAULT_INSERT_BATCH_SIZE,
+                (done, total) -> progress.add(done));
+        long batchMillis = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        Log.i(TAG, rows + " inserts, per row: " + perRowMillis + "ms (" + rows * 1000L / perRowMillis
+                + " rows/s), batched: " + batchMillis + "ms (" + rows * 1000L / batchMillis + " rows/s)");
+        assertEquals(rows, inserted);
+        assertEquals(rows / DatabaseHelper.DEFAULT_INSERT_BATCH_SIZE, progress.size());
+        assertEquals(Integer.valueOf(rows), progress.get(progress.size() - 1));
+        assertTrue(batched.get(rows - 1).getId() > 0);
+        assertEquals("batch " + (rows - 1), databaseHelper.getLastMessage("carol", "dave").getContent());
+    }
+
+    @Test
+    public void largeThread_holdsEachParticipantNameOnce() {
+        final int rows = 100000;
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        long alice = addUser(db, "alice");
+        long bob = addUser(db, "bob");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < " + rows + ") "
+                + "INSERT INTO message (message_content, sender_id, receiver_id, timestamp, message_type, conversation_id) "
+                + "SELECT 'message ' || i, CASE i % 2 WHEN 0 THEN " + alice + " ELSE " + bob + " END, "
+                + "CASE i % 2 WHEN 0 THEN " + bob + " ELSE " + alice + " END, i, 0, "
+                + DatabaseHelper.conversationId(alice, bob) + " FROM n");
+
+        long before = usedHeap();
+        List<Message> messages = databaseHelper.getMessages("alice", "bob");
+        long loadedBytes = usedHeap() - before;
+
+        // What the old model kept on top of that: a sender and a receiver string per row.
+        List<String> perRowNames = new ArrayList<>(2 * rows);
+        before = usedHeap();
+        for (Message message : messages) {
+            perRowNames.add(new String(message.getSender()));
+            perRowNames.add(new String(message.getReceiver()));
+        }
+        long perRowNameBytes = usedHeap() - before;
+
+        Log.i(TAG, rows + " messages retained " + loadedBytes / 1024 + "KB (" + loadedBytes / rows
+                + " bytes each); per-row names would add " + perRowNameBytes / 1024 + "KB");
+        assertEquals(rows, messages.size());
+        assertEquals(2 * rows, perRowNames.size());
+        for (Message message : messages) {
+            assertSame(messages.get(0).getSender(), message.getSenderId() == messages.get(0).getSenderId()
+                    ? message.getSender() : message.getReceiver());
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void signIn_seeksOnTheUniqueNameIndex() {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < 10000) "
+                + "INSERT INTO user (user_name, user_password) SELECT 'user' || i, 'secret' FROM n");
+        db.execSQL("ANALYZE");
+
+        String plan = explain(db, "SELECT user_id FROM user WHERE user_name = ? AND user_password = ?",
+                "user42", "secret");
+        Log.i(TAG, "checkUser plan: " + plan);
+
+        assertTrue(plan.contains("USING INDEX " + DatabaseHelper.INDEX_USER_NAME));
+        assertTrue(databaseHelper.checkUser("user42", "secret"));
+        try {
+            db.execSQL("INSERT INTO user (user_name) VALUES ('user42')");
+            fail("A second user42 was accepted");
+        } catch (SQLiteConstraintException expected) {
+            // The name is taken.
+        }
+    }
+
+    @Test
+    public void migratingToParticipantIds_shrinksTheDatabase() {
+        final int rows = 50000;
+        String alice = "alice.longer.username@example.com";
+        String bob = "bob.longer.username@example.com";
+        databaseHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+
+        // The v13 schema as it shipped: messages keyed by username, with the text conversation key.
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(DATABASE_NAME), null);
+        db.execSQL("CREATE TABLE user(user_id INTEGER PRIMARY KEY AUTOINCREMENT, user_name TEXT,"
+                + " user_email TEXT, user_password TEXT)");
+        db.execSQL("CREATE TABLE message(message_id INTEGER PRIMARY KEY AUTOINCREMENT, message_content TEXT,"
+                + " sender TEXT, receiver TEXT, timestamp INTEGER, message_type TEXT, message_caption TEXT,"
+                + " conversation_id TEXT, message_width INTEGER NOT NULL DEFAULT 0,"
+                + " message_height INTEGER NOT NULL DEFAULT 0, message_placeholder BLOB, media_id INTEGER)");
+        db.execSQL("CREATE INDEX idx_message_conversation ON message(conversation_id, timestamp)");
+        db.execSQL("CREATE TABLE conversation_summary(owner TEXT NOT NULL, peer TEXT NOT NULL,"
+                + " last_message_id INTEGER, last_message_content TEXT, last_timestamp INTEGER,"
+                + " PRIMARY KEY (owner, peer))");
+        MessageSearchIndex.create(db);
+        MediaTable.create(db);
+        db.execSQL("INSERT INTO user(user_name, user_email, user_password) VALUES"
+                + " ('" + alice + "', 'alice@example.com', 'secret'), ('" + bob + "', 'bob@example.com', 'secret')");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < " + rows + ") "
+                + "INSERT INTO message (message_content, sender, receiver, timestamp, message_type, conversation_id) "
+                + "SELECT 'message ' || i, '" + alice + "', '" + bob + "', i, 'TEXT', "
+                + "'" + alice + "' || char(31) || '" + bob + "' FROM n");
+        db.setVersion(13);
+        db.execSQL("VACUUM");
+        long v13Bytes = pageCount(db) * pageSize(db);
+
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            databaseHelper.migrator.migrate(db, 13, 14);
+            db.setVersion(14);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long migrateMillis = SystemClock.elapsedRealtime() - start;
+        db.execSQL("VACUUM");
+        long v14Bytes = pageCount(db) * pageSize(db);
+        long migrated = DatabaseUtils.queryNumEntries(db, "message");
+        db.close();
+
+        Log.i(TAG, rows + " messages at v13: " + v13Bytes / 1024 + "KB, migrated to v14 in " + migrateMillis
+                + "ms: " + v14Bytes / 1024 + "KB");
+        assertEquals(rows, migrated);
+        assertTrue(v14Bytes < v13Bytes);
+    }
+
+    @Test
+    public void cursorMapper_decodesFasterThanPerRowLookups() {
+        final int rows = 100000;
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        long alice = addUser(db, "alice");
+        long bob = addUser(db, "bob");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < " + rows + ") "
+                + "INSERT INTO message (message_content, sender_id, receiver_id, timestamp, message_type, conversation_id) "
+                + "SELECT 'message ' || i, " + alice + ", " + bob + ", i, i % 2, "
+                + DatabaseHelper.conversationId(alice, bob) + " FROM n");
+        LongFunction<String> names = id -> id == alice ? "alice" : "bob";
+
+        // Old path: the type stored by name, and every column looked up by name on every row.
+        StringBuilder columns = new StringBuilder();
+        for (String column : DatabaseHelper.MESSAGE_COLUMNS) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append(column.equals(DatabaseHelper.COLUMN_MESSAGE_TYPE)
+                    ? "CASE message_type WHEN 1 THEN 'IMAGE' ELSE 'TEXT' END AS message_type" : column);
+        }
+        Cursor cursor = db.rawQuery("SELECT " + columns + " FROM message", null);
+        cursor.getCount();
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<Message> byName = new ArrayList<>(rows);
+        while (cursor.moveToNext()) {
+            Message message = new Message(
+                    cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_CONTENT)),
+                    names.apply(cursor.getLong(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_SENDER_ID))),
+                    names.apply(cursor.getLong(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_RECEIVER_ID))),
+                    cursor.getLong(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_TIMESTAMP)),
+                    Message.MessageType.valueOf(cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_TYPE))),
+                    cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_CAPTION)));
+            message.setId(cursor.getLong(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_ID)));
+            message.setDimensions(cursor.getInt(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_WIDTH)),
+                    cursor.getInt(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_HEIGHT)));
+            message.setPlaceholder(cursor.getBlob(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_PLACEHOLDER)));
+            message.setMediaId(cursor.getLong(cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MEDIA_ID)));
+            byName.add(message);
+        }
+        long byNameNanos = Math.max(1, SystemClock.elapsedRealtimeNanos() - start);
+        cursor.close();
+
+        // New path: integer codes, with the indices resolved once for the cursor.
+        cursor = db.query("message", DatabaseHelper.MESSAGE_COLUMNS, null, null, null, null, null);
+        cursor.getCount();
+        start = SystemClock.elapsedRealtimeNanos();
+        List<Message> mapped = new MessageCursorMapper(cursor, names).mapAll();
+        long mappedNanos = Math.max(1, SystemClock.elapsedRealtimeNanos() - start);
+        cursor.close();
+
+        // getCount() fills the first cursor window up front, so mostly decoding is timed.
+        Log.i(TAG, "decoded " + rows + " rows, per-row lookups: " + rows * 1_000_000_000L / byNameNanos
+                + " rows/s, cursor mapper: " + rows * 1_000_000_000L / mappedNanos + " rows/s");
+        assertEquals(rows, mapped.size());
+        for (int i = 0; i < rows; i++) {
+            assertEquals(byName.get(i).getType(), mapped.get(i).getType());
+        }
+        assertEquals(Message.MessageType.IMAGE, mapped.get(0).getType());
+    }
+
+    @Test
+    public void newestPage_opensLongThreadWithoutLoadingIt() {
+        final int rows = 100000;
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        long alice = addUser(db, "alice");
+        long bob = addUser(db, "bob");
+        db.execSQL("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < " + rows + ") "
+                + "INSERT INTO message (message_content, sender_id, receiver_id, timestamp, message_type, conversation_id) "
+                + "SELECT 'message ' || i, " + alice + ", " + bob + ", i, 0, "
+                + DatabaseHelper.conversationId(alice, bob) + " FROM n");
+
+        // Materialising the whole conversation before showing it.
+        long before = usedHeap();
+        long start = SystemClock.elapsedRealtime();
+        List<Message> all = databaseHelper.getMessages("alice", "bob");
+        long allMillis = SystemClock.elapsedRealtime() - start;
+        long allBytes = usedHeap() - before;
+        assertEquals(rows, all.size());
+        all = null;
+
+        // What MessagePager reads to open at the bottom: the newest page only.
+        before = usedHeap();
+        start = SystemClock.elapsedRealtime();
+        List<Message> last = databaseHelper.getMessagesBefore("alice", "bob",
+                Long.MAX_VALUE, Long.MAX_VALUE, MessagePager.PAGE_SIZE);
+        long pageMillis = SystemClock.elapsedRealtime() - start;
+        long pageBytes = usedHeap() - before;
+
+        Log.i(TAG, "open " + rows + "-message thread, all rows: " + allMillis + "ms " + allBytes / 1024
+                + "KB, newest page: " + pageMillis + "ms " + pageBytes / 1024 + "KB");
+        assertEquals(MessagePager.PAGE_SIZE, last.size());
+        assertEquals("message " + rows, last.get(last.size() - 1).getContent());
+        assertTrue(pageBytes < allBytes);
+    }
+
+    private static long addUser(SQLiteDatabase db, String name) {
+        db.execSQL("INSERT OR IGNORE INTO user (user_name) VALUES (?)", new Object[]{name});
+        Cursor cursor = db.rawQuery("SELECT user_id FROM user WHERE user_name = ?", new String[]{name});
+        cursor.moveToFirst();
+        long id = cursor.getLong(0);
+        cursor.close();
+        return id;
+    }
+
+    private static long pageCount(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+    }
+
+    private static long pageSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    // Seeks on the conversation index and reads it in order, with no sort of its own.
+    private static void assertReadsConversationIndex(SQLiteDatabase db, String access, String sql, String... args) {
+        String plan = explain(db, sql, args);
+        Log.i(TAG, sql + "\n" + plan);
+        assertTrue(plan, plan.contains(access + " " + DatabaseHelper.INDEX_MESSAGE_CONVERSATION));
+        assertFalse(plan, plan.contains("USE TEMP B-TREE"));
+    }
+
+    private static String[] append(String[] args, String last) {
+        String[] all = Arrays.copyOf(args, args.length + 1);
+        all[args.length] = last;
+        return all;
+    }
+
+    private static String explain(SQLiteDatabase db, String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+}
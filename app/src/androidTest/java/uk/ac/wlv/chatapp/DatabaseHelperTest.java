@@ -0,0 +1,226 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behaviour of the database layer against a scratch database, so the app's real data is never
+ * touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperTest {
+
+    private static final String DATABASE_NAME = "helper-test.db";
+
+    private Context context;
+    private DatabaseHelper databaseHelper;
+    private ImageIngestor imageIngestor;
+    private File imageSource;
+    // Copies land in the app's real media directory, so each one is removed after the test.
+    private final List<ImageIngestor.Result> ingested = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        databaseHelper = new DatabaseHelper(context, DATABASE_NAME);
+        imageIngestor = new ImageIngestor(context, ImageIngestor.DEFAULT_MAX_DIMENSION,
+                ImageIngestor.DEFAULT_JPEG_QUALITY);
+        imageSource = new File(context.getCacheDir(), "helper-test-image.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(64, 48, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.MAGENTA);
+        try (FileOutputStream out = new FileOutputStream(imageSource)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        }
+        bitmap.recycle();
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+        context.deleteDatabase(DATABASE_NAME);
+        for (ImageIngestor.Result media : ingested) {
+            storedFile(media).delete();
+        }
+        imageSource.delete();
+    }
+
+    @Test
+    public void placeholderUsers_areNotListedUntilTheySignUp() {
+        databaseHelper.addUser(user("alice", "secret"));
+        databaseHelper.addMessage(new Message("hi", "alice", "stranger", 1, Message.MessageType.TEXT));
+
+        assertEquals(Collections.singletonList("alice"), names(databaseHelper.getAllUsers()));
+        assertTrue(databaseHelper.getConversationSummaries("alice").isEmpty());
+        assertFalse(databaseHelper.checkUser("stranger"));
+
+        databaseHelper.addUser(user("stranger", "hunter2"));
+
+        List<User> contacts = databaseHelper.getConversationSummaries("alice");
+        assertEquals(Collections.singletonList("stranger"), names(contacts));
+        assertEquals("hi", contacts.get(0).getLastMessage());
+    }
+
+    @Test
+    public void upgradeToParticipantIds_mergesDuplicateUsernamesIntoTheOldestAccount() {
+        SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(DATABASE_NAME), null);
+        legacy.execSQL("CREATE TABLE user(user_id INTEGER PRIMARY KEY AUTOINCREMENT, user_name TEXT,"
+                + " user_email TEXT, user_password TEXT)");
+        legacy.execSQL("CREATE TABLE message(message_id INTEGER PRIMARY KEY AUTOINCREMENT, message_content TEXT,"
+                + " sender TEXT, receiver TEXT, timestamp INTEGER, message_type TEXT, message_caption TEXT,"
+                + " conversation_id TEXT, message_width INTEGER NOT NULL DEFAULT 0,"
+                + " message_height INTEGER NOT NULL DEFAULT 0, message_placeholder BLOB, media_id INTEGER)");
+        MediaTable.create(legacy);
+        legacy.execSQL("INSERT INTO user(user_id, user_name, user_email, user_password) VALUES"
+                + " (1, 'alice', 'first@example.com', 'first'),"
+                + " (2, 'bob', 'bob@example.com', 'secret'),"
+                + " (3, 'alice', 'second@example.com', 'second'),"
+                + " (4, 'carol', NULL, NULL),"
+                + " (5, 'carol', 'carol@example.com', 'hunter2')");
+        legacy.execSQL("INSERT INTO message(message_content, sender, receiver, timestamp, message_type) VALUES"
+                + " ('from the first alice', 'alice', 'bob', 1, 'TEXT'),"
+                + " ('from the second alice', 'alice', 'bob', 2, 'TEXT'),"
+                + " ('to carol', 'bob', 'carol', 3, 'TEXT')");
+        legacy.setVersion(13);
+        legacy.close();
+
+        List<String> contacts = names(databaseHelper.getAllUsers());
+        Collections.sort(contacts);
+        assertEquals(Arrays.asList("alice", "bob", "carol"), contacts);
+        assertTrue(databaseHelper.checkUser("alice", "first"));
+        assertFalse(databaseHelper.checkUser("alice", "second"));
+        assertTrue(databaseHelper.checkUser("carol", "hunter2"));
+
+        List<Message> messages = databaseHelper.getMessages("alice", "bob");
+        assertEquals(2, messages.size());
+        assertEquals("from the first alice", messages.get(0).getContent());
+        assertEquals("from the second alice", messages.get(1).getContent());
+        assertEquals(databaseHelper.getUserId("alice"), messages.get(1).getSenderId());
+        assertEquals(1, databaseHelper.getMessages("bob", "carol").size());
+    }
+
+    @Test
+    public void sameImageSentTwice_isStoredOnceWithTwoReferences() throws IOException {
+        ImageIngestor.Result first = ingest();
+        ImageIngestor.Result second = ingest();
+        assertEquals(first.uri, second.uri);
+
+        assertNotEquals(-1, databaseHelper.addImageMessage(image(first, 1), first));
+        assertNotEquals(-1, databaseHelper.addImageMessage(image(second, 2), second));
+
+        assertEquals(1, mediaRows());
+        assertEquals(2, refCount(first));
+    }
+
+    @Test
+    public void deletingOneOfTwoMessages_keepsTheSharedFile() throws IOException {
+        ImageIngestor.Result media = ingest();
+        long firstId = databaseHelper.addImageMessage(image(media, 1), media);
+        databaseHelper.addImageMessage(image(media, 2), media);
+
+        assertFalse(databaseHelper.deleteMessages(Collections.singletonList(firstId)));
+        assertEquals(0, databaseHelper.collectUnreferencedMedia());
+
+        assertEquals(1, refCount(media));
+        assertTrue(storedFile(media).isFile());
+    }
+
+    @Test
+    public void deletingTheLastMessage_letsCollectionRemoveTheRowAndFile() throws IOException {
+        ImageIngestor.Result media = ingest();
+        long firstId = databaseHelper.addImageMessage(image(media, 1), media);
+        long secondId = databaseHelper.addImageMessage(image(media, 2), media);
+
+        assertTrue(databaseHelper.deleteMessages(Arrays.asList(firstId, secondId)));
+        // The file stays until collection runs, so the delete itself never touches files.
+        assertTrue(storedFile(media).isFile());
+        assertEquals(1, databaseHelper.collectUnreferencedMedia());
+
+        assertEquals(0, mediaRows());
+        assertFalse(storedFile(media).exists());
+    }
+
+    @Test
+    public void collectedCopy_isRestoredBeforeANewSendReferencesIt() throws IOException {
+        // Ingested for a send, but collected after the only other message using it was deleted.
+        ImageIngestor.Result pending = ingest();
+        long sentId = databaseHelper.addImageMessage(image(pending, 1), pending);
+        databaseHelper.deleteMessages(Collections.singletonList(sentId));
+        databaseHelper.collectUnreferencedMedia();
+        assertFalse(storedFile(pending).exists());
+        assertEquals(-1, databaseHelper.addImageMessage(image(pending, 2), pending));
+
+        // What ChatRepository does on the writer thread before inserting.
+        ImageIngestor.Result restored = imageIngestor.restore(pending);
+        ingested.add(restored);
+        assertEquals(pending.hash, restored.hash);
+        assertTrue(storedFile(restored).isFile());
+        assertNotEquals(-1, databaseHelper.addImageMessage(image(restored, 2), restored));
+
+        assertEquals(1, mediaRows());
+        assertEquals(1, refCount(restored));
+    }
+
+    private ImageIngestor.Result ingest() throws IOException {
+        ImageIngestor.Result media = imageIngestor.ingest(imageSource.getPath());
+        ingested.add(media);
+        return media;
+    }
+
+    private static Message image(ImageIngestor.Result media, long timestamp) {
+        Message message = new Message(media.uri, "alice", "bob", timestamp, Message.MessageType.IMAGE);
+        message.setDimensions(media.width, media.height);
+        return message;
+    }
+
+    private static File storedFile(ImageIngestor.Result media) {
+        return new File(Uri.parse(media.uri).getPath());
+    }
+
+    private long mediaRows() {
+        return DatabaseUtils.queryNumEntries(databaseHelper.getWritableDatabase(), "media");
+    }
+
+    private long refCount(ImageIngestor.Result media) {
+        return DatabaseUtils.longForQuery(databaseHelper.getWritableDatabase(),
+                "SELECT ref_count FROM media WHERE media_hash = ?", new String[]{media.hash});
+    }
+
+    private static User user(String name, String password) {
+        User user = new User();
+        user.setName(name);
+        user.setEmail(name + "@example.com");
+        user.setPassword(password);
+        return user;
+    }
+
+    private static List<String> names(List<User> users) {
+        List<String> names = new ArrayList<>();
+        for (User user : users) {
+            names.add(user.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,85 @@
+package uk.ac.wlv.chatapp;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the total duration of every frame an activity's window draws between {@link #start}
+ * and {@link #stop}, as reported by {@link FrameMetrics}. Shared by the frame-time tests.
+ */
+final class FrameRecorder implements Window.OnFrameMetricsAvailableListener {
+
+    // A frame that misses a 60Hz vsync.
+    static final long JANK_NANOS = 16_666_667L;
+
+    private final Window window;
+    private final HandlerThread thread = new HandlerThread("frame-metrics");
+    private final List<Long> durations = new ArrayList<>();
+
+    private FrameRecorder(Window window) {
+        this.window = window;
+    }
+
+    static FrameRecorder start(Activity activity) {
+        FrameRecorder recorder = new FrameRecorder(activity.getWindow());
+        recorder.thread.start();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() ->
+                recorder.window.addOnFrameMetricsAvailableListener(recorder, new Handler(recorder.thread.getLooper())));
+        return recorder;
+    }
+
+    @Override
+    public void onFrameMetricsAvailable(Window window, FrameMetrics frameMetrics, int dropCountSinceLastInvocation) {
+        if (frameMetrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1) {
+            return;
+        }
+        synchronized (durations) {
+            durations.add(frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION));
+        }
+    }
+
+    /** Stops recording and returns the frame durations in nanoseconds, in the order drawn. */
+    long[] stop() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() ->
+                window.removeOnFrameMetricsAvailableListener(this));
+        thread.quitSafely();
+        synchronized (durations) {
+            long[] frames = new long[durations.size()];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = durations.get(i);
+            }
+            return frames;
+        }
+    }
+
+    private static int countJanky(long[] frames) {
+        int janky = 0;
+        for (long frame : frames) {
+            if (frame > JANK_NANOS) {
+                janky++;
+            }
+        }
+        return janky;
+    }
+
+    /** Frame count, janky frames, and the median, 90th percentile and slowest frame. */
+    static String summarize(long[] frames) {
+        if (frames.length == 0) {
+            return "no frames";
+        }
+        long[] sorted = frames.clone();
+        Arrays.sort(sorted);
+        return frames.length + " frames, " + countJanky(frames) + " over " + JANK_NANOS / 1_000_000
+                + "ms, p50 " + sorted[sorted.length / 2] / 1000 + "us, p90 " + sorted[sorted.length * 9 / 10] / 1000
+                + "us, max " + sorted[sorted.length - 1] / 1000 + "us";
+    }
+}
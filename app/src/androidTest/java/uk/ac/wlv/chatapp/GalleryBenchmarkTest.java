@@ -0,0 +1,159 @@
+package uk.ac.wlv.chatapp;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.view.ViewConfiguration;
+
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Flings GalleryActivity's grid through 10,000 seeded MediaStore images and records janky frames
+ * and how many images ImageLoader decoded, with decoding paused while the grid flings as the
+ * activity does it. Results are written to logcat under "GalleryBenchmark"; timings are only
+ * logged, and the assertions check that the flings passed more cells than were decoded.
+ *
+ * The images are inserted under their own folder in Pictures and deleted again afterwards. Apps
+ * can insert into and read back their own MediaStore images without a permission from Android 10,
+ * which is also where the loader starts using platform thumbnails, so the test needs Android 10.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GalleryBenchmarkTest {
+
+    private static final String TAG = "GalleryBenchmark";
+    private static final int IMAGES = 10000;
+    private static final int FLINGS = 30;
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_PICTURES + "/ChatAppGalleryBenchmark/";
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    private Instrumentation instrumentation;
+    private ContentResolver resolver;
+    private ActivityScenario<GalleryActivity> scenario;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+        resolver = context.getContentResolver();
+        deleteSeededImages();
+
+        // A handful of distinct JPEGs, so the cells do not all look alike; each insert is its own image.
+        byte[][] jpegs = new byte[8][];
+        for (int i = 0; i < jpegs.length; i++) {
+            Bitmap bitmap = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.HSVToColor(new float[]{i * 45f, 0.6f, 0.9f}));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            bitmap.recycle();
+            jpegs[i] = out.toByteArray();
+        }
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < IMAGES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.DISPLAY_NAME, "benchmark_" + i + ".jpg");
+            values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
+            values.put(MediaStore.Images.Media.RELATIVE_PATH, RELATIVE_PATH);
+            Uri uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            assertNotNull(uri);
+            try (OutputStream out = resolver.openOutputStream(uri)) {
+                out.write(jpegs[i % jpegs.length]);
+            }
+        }
+        Log.i(TAG, "Seeded " + IMAGES + " images in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    @After
+    public void tearDown() {
+        if (scenario != null) {
+            scenario.close();
+        }
+        if (resolver != null) {
+            deleteSeededImages();
+        }
+    }
+
+    @Test
+    public void flingingTenThousandImages_decodesOnlyWhereTheGridStops() {
+        Context context = instrumentation.getTargetContext();
+        ImageLoader imageLoader = ImageLoader.getInstance(context);
+        scenario = ActivityScenario.launch(new Intent(context, GalleryActivity.class));
+        RecyclerView[] grid = new RecyclerView[1];
+        GalleryActivity[] activity = new GalleryActivity[1];
+        scenario.onActivity(started -> {
+            activity[0] = started;
+            grid[0] = started.findViewById(R.id.galleryRecyclerView);
+        });
+        RecyclerView recyclerView = grid[0];
+        waitUntil(() -> recyclerView.getChildCount() > 0);
+        SystemClock.sleep(500);
+        instrumentation.waitForIdleSync();
+
+        int maxVelocity = ViewConfiguration.get(context).getScaledMaximumFlingVelocity();
+        int decodesBefore = imageLoader.decodeCount();
+        FrameRecorder recorder = FrameRecorder.start(activity[0]);
+        for (int i = 0; i < FLINGS; i++) {
+            instrumentation.runOnMainSync(() -> recyclerView.fling(0, maxVelocity));
+            waitUntil(() -> recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_IDLE);
+            // Decoding resumes once the grid stops; let the cells on screen fill in.
+            SystemClock.sleep(300);
+            instrumentation.waitForIdleSync();
+        }
+        long[] frames = recorder.stop();
+        int decodes = imageLoader.decodeCount() - decodesBefore;
+        int[] passed = new int[1];
+        instrumentation.runOnMainSync(() -> passed[0] =
+                ((GridLayoutManager) recyclerView.getLayoutManager()).findLastVisibleItemPosition() + 1);
+
+        Log.i(TAG, FLINGS + " flings past " + passed[0] + " cells: " + FrameRecorder.summarize(frames)
+                + ", " + decodes + " images decoded");
+        assertTrue(frames.length > 0);
+        // Paused while settling, so cells flung past are never decoded.
+        assertTrue(decodes + " decodes for " + passed[0] + " cells", decodes < passed[0]);
+    }
+
+    private void deleteSeededImages() {
+        resolver.delete(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                MediaStore.Images.Media.RELATIVE_PATH + " = ?", new String[]{RELATIVE_PATH});
+    }
+
+    private void waitUntil(BooleanSupplier condition) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        boolean[] met = new boolean[1];
+        while (true) {
+            instrumentation.runOnMainSync(() -> met[0] = condition.getAsBoolean());
+            if (met[0]) {
+                return;
+            }
+            assertTrue("Timed out waiting for the grid", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(20);
+        }
+    }
+}
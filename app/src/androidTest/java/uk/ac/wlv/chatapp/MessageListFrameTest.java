@@ -0,0 +1,192 @@
+package uk.ac.wlv.chatapp;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MenuItem;
+
+import androidx.appcompat.widget.SearchView;
+import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame times of ChatActivity on a long conversation while rows are selected and while the search
+ * filter is typed, read from FrameMetrics by {@link FrameRecorder}. Results are written to logcat
+ * under "FrameBenchmark"; like DatabaseBenchmarkTest, timings are only logged, and the assertions
+ * check that frames were drawn and the list ended up in the expected state.
+ *
+ * The activity reads the app's own database, so the conversation is seeded there between two
+ * names no real account uses and its messages are deleted again afterwards. The names stay behind
+ * as placeholder users, which are never listed as contacts. Both go through ChatRepository, so
+ * its cache of recently opened conversations never serves a page from an earlier run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageListFrameTest {
+
+    private static final String TAG = "FrameBenchmark";
+    private static final String ME = "frame-test-me";
+    private static final String PEER = "frame-test-peer";
+    private static final int MESSAGES = 20000;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private Instrumentation instrumentation;
+    private ChatRepository repository;
+    private SharedPreferences prefs;
+    private String previousUsername;
+    private ActivityScenario<ChatActivity> scenario;
+    private ChatActivity activity;
+    private RecyclerView recyclerView;
+    private MessageAdapter adapter;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+        repository = ChatRepository.getInstance(context);
+        prefs = context.getSharedPreferences("ChatApp", Context.MODE_PRIVATE);
+        previousUsername = prefs.getString("USERNAME", null);
+        prefs.edit().putString("USERNAME", ME).commit();
+
+        deleteConversation(context);
+        List<Message> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add(new Message("message " + i + " about topic " + (i % 97),
+                    i % 2 == 0 ? ME : PEER, i % 2 == 0 ? PEER : ME, i, Message.MessageType.TEXT));
+        }
+        CountDownLatch seeded = new CountDownLatch(1);
+        repository.addMessages(messages, DatabaseHelper.DEFAULT_INSERT_BATCH_SIZE, null, inserted -> seeded.countDown());
+        assertTrue(seeded.await(60, TimeUnit.SECONDS));
+
+        scenario = ActivityScenario.launch(new Intent(context, ChatActivity.class).putExtra("RECIPIENT_NAME", PEER));
+        scenario.onActivity(started -> {
+            activity = started;
+            recyclerView = started.findViewById(R.id.recyclerViewMessages);
+            adapter = (MessageAdapter) recyclerView.getAdapter();
+        });
+        waitUntil(() -> recyclerView.getChildCount() > 0);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (scenario != null) {
+            scenario.close();
+        }
+        if (previousUsername != null) {
+            prefs.edit().putString("USERNAME", previousUsername).commit();
+        } else {
+            prefs.edit().remove("USERNAME").commit();
+        }
+        deleteConversation(instrumentation.getTargetContext());
+    }
+
+    @Test
+    public void togglingSelection_recordsFrameTimes() {
+        int rows = onMain(() -> recyclerView.getChildCount());
+        FrameRecorder recorder = FrameRecorder.start(activity);
+
+        onMain(() -> recyclerView.getChildAt(0).performLongClick());
+        settle();
+        // Select the rest of the visible rows, then deselect them again, one toggle at a time.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 1; i < rows; i++) {
+                final int child = i;
+                onMain(() -> recyclerView.getChildAt(child).performClick());
+                settle();
+            }
+        }
+        assertEquals(1, (int) onMain(() -> adapter.getSelectedCount()));
+        instrumentation.runOnMainSync(() -> activity.onSelectionModeChanged(false, 0));
+        settle();
+
+        long[] frames = recorder.stop();
+        Log.i(TAG, "selection toggles: " + FrameRecorder.summarize(frames));
+        assertEquals(0, (int) onMain(() -> adapter.getSelectedCount()));
+        assertTrue(frames.length > 0);
+    }
+
+    @Test
+    public void filteringBySearch_recordsFrameTimes() {
+        SearchView searchView = onMain(() -> {
+            Toolbar toolbar = activity.findViewById(R.id.toolbar);
+            MenuItem item = toolbar.getMenu().findItem(R.id.action_search);
+            item.expandActionView();
+            return (SearchView) item.getActionView();
+        });
+        settle();
+        FrameRecorder recorder = FrameRecorder.start(activity);
+
+        // Typed a key at a time, slower than the debounce, so each query runs and later ones
+        // narrow the results of earlier ones.
+        String query = "topic 42";
+        for (int i = 1; i <= query.length(); i++) {
+            final String typed = query.substring(0, i);
+            instrumentation.runOnMainSync(() -> searchView.setQuery(typed, false));
+            SystemClock.sleep(ConversationSearch.DEBOUNCE_MILLIS + 100);
+        }
+        waitUntil(() -> adapter.isShowingSearchResults());
+        settle();
+        int results = onMain(() -> adapter.getItemCount());
+        instrumentation.runOnMainSync(() -> searchView.setQuery("", false));
+        waitUntil(() -> !adapter.isShowingSearchResults());
+        settle();
+
+        long[] frames = recorder.stop();
+        Log.i(TAG, "search filter: " + FrameRecorder.summarize(frames));
+        assertTrue(results > 0);
+        assertTrue(frames.length > 0);
+    }
+
+    private void deleteConversation(Context context) throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for (Message message : DatabaseHelper.getInstance(context).getMessages(ME, PEER)) {
+            ids.add(message.getId());
+        }
+        CountDownLatch deleted = new CountDownLatch(1);
+        repository.deleteMessages(ids, result -> deleted.countDown());
+        assertTrue(deleted.await(60, TimeUnit.SECONDS));
+    }
+
+    // Lets the main thread draw whatever the last action changed.
+    private void settle() {
+        instrumentation.waitForIdleSync();
+        SystemClock.sleep(32);
+    }
+
+    private void waitUntil(BooleanSupplier condition) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (!onMain(condition::getAsBoolean)) {
+            assertTrue("Timed out waiting for the list", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(20);
+        }
+        instrumentation.waitForIdleSync();
+    }
+
+    private interface MainThreadCall<T> {
+        T call();
+    }
+
+    private <T> T onMain(MainThreadCall<T> call) {
+        List<T> result = new ArrayList<>(1);
+        instrumentation.runOnMainSync(() -> result.add(call.call()));
+        return result.get(0);
+    }
+}
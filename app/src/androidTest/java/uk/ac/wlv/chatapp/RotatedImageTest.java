@@ -0,0 +1,102 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes a JPEG stored sideways with an EXIF rotation the way {@link TiledImageView} and
+ * {@link ImageLoader} do, and checks that what comes out is upright.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RotatedImageTest {
+
+    // Stored 200x100, left half red and right half blue; shown as a 100x200 portrait.
+    private static final int STORED_WIDTH = 200;
+    private static final int STORED_HEIGHT = 100;
+
+    private ImageLoader loader;
+    private File fixture;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        loader = ImageLoader.getInstance(context);
+        fixture = new File(context.getCacheDir(), "rotated-fixture.jpg");
+        Bitmap stored = paintHalves();
+        try (FileOutputStream out = new FileOutputStream(fixture)) {
+            stored.compress(Bitmap.CompressFormat.JPEG, 100, out);
+        }
+        stored.recycle();
+        ExifInterface exif = new ExifInterface(fixture.getPath());
+        exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+        exif.saveAttributes();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Test
+    public void wholeImage_isTurnedUpright() {
+        int orientation = ImageOrientation.read(loader, fixture.getPath());
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90, orientation);
+
+        Bitmap upright = ImageOrientation.orient(BitmapFactory.decodeFile(fixture.getPath()), orientation);
+        assertEquals(STORED_HEIGHT, upright.getWidth());
+        assertEquals(STORED_WIDTH, upright.getHeight());
+        // The stored left half ends up on top.
+        assertColor(Color.RED, upright.getPixel(50, 50));
+        assertColor(Color.BLUE, upright.getPixel(50, 150));
+    }
+
+    @Test
+    public void uprightTile_decodesTheMatchingStoredRegion() throws IOException {
+        int orientation = ImageOrientation.read(loader, fixture.getPath());
+        // The bottom half of the upright image, as TiledImageView would ask for it.
+        int[] stored = ImageOrientation.toStored(orientation, STORED_WIDTH, STORED_HEIGHT, 0, 100, 100, 200);
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(fixture.getPath(), false);
+        Bitmap tile = decoder.decodeRegion(new Rect(stored[0], stored[1], stored[2], stored[3]), null);
+        decoder.recycle();
+        tile = ImageOrientation.orient(tile, orientation);
+
+        assertEquals(100, tile.getWidth());
+        assertEquals(100, tile.getHeight());
+        assertColor(Color.BLUE, tile.getPixel(50, 50));
+    }
+
+    private static Bitmap paintHalves() {
+        Bitmap bitmap = Bitmap.createBitmap(STORED_WIDTH, STORED_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.BLUE);
+        canvas.clipRect(0, 0, STORED_WIDTH / 2, STORED_HEIGHT);
+        canvas.drawColor(Color.RED);
+        return bitmap;
+    }
+
+    // JPEG is lossy, so only the dominant channel is checked.
+    private static void assertColor(int expected, int actual) {
+        assertEquals(Color.red(expected) > 128, Color.red(actual) > 128);
+        assertEquals(Color.blue(expected) > 128, Color.blue(actual) > 128);
+    }
+}
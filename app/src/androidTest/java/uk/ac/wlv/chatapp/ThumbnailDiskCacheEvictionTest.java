@@ -0,0 +1,118 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes real files through {@link ThumbnailDiskCache} in a scratch directory and checks what is
+ * left on disk once it goes past its cap, and after a crash left a temporary file behind.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailDiskCacheEvictionTest {
+
+    private static final int ENTRIES = 10;
+
+    private File directory;
+    private Bitmap bitmap;
+    private long entryBytes;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(context.getCacheDir(), "thumbnail-cache-test");
+        deleteDirectory();
+        bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(Color.CYAN);
+
+        // Every entry is the same bitmap, so one written with no cap gives the size of each.
+        new ThumbnailDiskCache(directory, Long.MAX_VALUE).put("probe", bitmap);
+        entryBytes = new File(directory, "probe").length();
+        assertTrue(entryBytes > 0);
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        bitmap.recycle();
+        deleteDirectory();
+    }
+
+    @Test
+    public void putPastTheCap_evictsLeastRecentlyUsedDownToNinetyPercent() {
+        long maxBytes = ENTRIES * entryBytes;
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(directory, maxBytes);
+        // Ages a second apart, oldest first, so the order does not hang on timestamp granularity.
+        long oldest = System.currentTimeMillis() - 3600_000L;
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.put("entry" + i, bitmap);
+            assertTrue(new File(directory, "entry" + i).setLastModified(oldest + i * 1000L));
+        }
+        // Reading the oldest entry makes it the most recently used.
+        assertNotNull(cache.get("entry0"));
+
+        cache.put("entry" + ENTRIES, bitmap);
+
+        // Eleven entries against a cap of ten; trimming to nine drops the two least recently used.
+        assertNotNull(cache.get("entry0"));
+        assertNull(cache.get("entry1"));
+        assertNull(cache.get("entry2"));
+        for (int i = 3; i <= ENTRIES; i++) {
+            assertNotNull("entry" + i, cache.get("entry" + i));
+        }
+        assertTrue(directoryBytes() <= maxBytes * 9 / 10);
+    }
+
+    @Test
+    public void firstScan_removesLeftoverTemporaryFiles() throws IOException {
+        assertTrue(directory.mkdirs());
+        File leftover = new File(directory, "entry0.tmp");
+        try (FileOutputStream out = new FileOutputStream(leftover)) {
+            out.write(new byte[1024]);
+        }
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(directory, Long.MAX_VALUE);
+
+        cache.put("entry1", bitmap);
+
+        assertFalse(leftover.exists());
+        assertNotNull(cache.get("entry1"));
+        String[] names = directory.list();
+        assertNotNull(names);
+        assertEquals(1, names.length);
+    }
+
+    private long directoryBytes() {
+        long total = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -30,7 +30,6 @@ import androidx.recyclerview.widget.RecyclerView;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
@@ -43,8 +42,9 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
     private Button buttonSend;
     private ImageButton buttonAttach, buttonCamera;
     private MessageAdapter messageAdapter;
-    private List<Message> messageList;
-    private DatabaseHelper databaseHelper;
+    private MessagePager messagePager;
+    private ConversationSearch conversationSearch;
+    private ChatRepository repository;
     private String currentUsername;
     private String recipientName;
     private ActionMode actionMode;
@@ -53,6 +53,8 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
     private static final int GALLERY_REQUEST_CODE = 101;
     private static final int CAMERA_REQUEST_CODE = 102;
     private static final int IMAGE_PREVIEW_REQUEST_CODE = 103;
+    // How close to either end of the loaded window the list may get before the next page is fetched.
+    private static final int PAGE_PREFETCH_DISTANCE = 10;
     private String currentPhotoPath;
 
     @Override
@@ -85,13 +87,65 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
             buttonAttach = findViewById(R.id.buttonAttach);
             buttonCamera = findViewById(R.id.buttonCamera);
 
-            databaseHelper = new DatabaseHelper(this);
-            messageList = new ArrayList<>();
+            repository = ChatRepository.getInstance(this);
 
-            messageAdapter = new MessageAdapter(this, messageList, currentUsername, this);
-            recyclerViewMessages.setLayoutManager(new LinearLayoutManager(this));
+            messageAdapter = new MessageAdapter(this, this);
+            LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+            recyclerViewMessages.setLayoutManager(layoutManager);
             recyclerViewMessages.setAdapter(messageAdapter);
 
+            messagePager = new MessagePager(repository, currentUsername, recipientName, new MessagePager.Listener() {
+                @Override
+                public void onPagePrepended(List<Message> page) {
+                    messageAdapter.prependMessages(page);
+                }
+
+                @Override
+                public void onPageAppended(List<Message> page) {
+                    messageAdapter.appendMessages(page);
+                }
+
+                @Override
+                public void onPageDropped(List<Message> page) {
+                    messageAdapter.removeMessages(page);
+                }
+
+                @Override
+                public void onMessageAppended(Message message) {
+                    messageAdapter.addMessage(message);
+                }
+            });
+
+            conversationSearch = new ConversationSearch(repository, currentUsername, recipientName,
+                    new ConversationSearch.Listener() {
+                        @Override
+                        public void onResults(List<Message> results) {
+                            messageAdapter.showSearchResults(results);
+                        }
+
+                        @Override
+                        public void onCleared() {
+                            messageAdapter.clearSearchResults();
+                        }
+                    });
+
+            recyclerViewMessages.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                    if (messageAdapter.isShowingSearchResults()) {
+                        return;
+                    }
+                    // Pages arrive later on the main thread, so adapter changes never happen inside this callback.
+                    if (dy < 0 && messagePager.hasOlder()
+                            && layoutManager.findFirstVisibleItemPosition() <= PAGE_PREFETCH_DISTANCE) {
+                        messagePager.loadOlder();
+                    } else if (dy > 0 && messagePager.hasNewer()
+                            && layoutManager.findLastVisibleItemPosition() >= messageAdapter.getItemCount() - 1 - PAGE_PREFETCH_DISTANCE) {
+                        messagePager.loadNewer();
+                    }
+                }
+            });
+
             loadMessages();
 
             buttonSend.setOnClickListener(v -> sendMessage());
@@ -216,8 +270,8 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
             if (imagePathString != null) {
                 Intent previewIntent = new Intent(this, ImagePreviewActivity.class);
                 String uriString;
-                if (imagePathString.startsWith("drawable://")) {
-                    // If it's a drawable resource, pass the custom path directly.
+                if (imagePathString.startsWith("drawable://") || imagePathString.startsWith("content://")) {
+                    // Drawable resources and MediaStore picks are already URIs, so pass them on directly.
                     uriString = imagePathString;
                 } else {
                     // If it's a file path, convert it to a file URI string.
@@ -237,11 +291,20 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
     }
 
     private void loadMessages() {
-        List<Message> allMessages = databaseHelper.getMessages(currentUsername, recipientName);
-        messageAdapter.updateList(allMessages);
-        if (!allMessages.isEmpty()) {
-            recyclerViewMessages.scrollToPosition(allMessages.size() - 1);
-        }
+        // Rows are told apart as sent or received by user id, so it is needed before any are shown.
+        repository.getUserId(currentUsername, userId -> {
+            messageAdapter.setCurrentUserId(userId);
+            messagePager.loadNewest(this::scrollToNewest);
+        });
+    }
+
+    private void scrollToNewest() {
+        // The adapter diffs in the background, so wait until the new rows are actually in it.
+        messageAdapter.runAfterPendingUpdates(() -> {
+            if (messageAdapter.getItemCount() > 0) {
+                recyclerViewMessages.scrollToPosition(messageAdapter.getItemCount() - 1);
+            }
+        });
     }
 
     private void sendMessage() {
@@ -249,17 +312,50 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
         if (!content.isEmpty()) {
             long timestamp = System.currentTimeMillis();
             Message message = new Message(content, currentUsername, recipientName, timestamp, Message.MessageType.TEXT);
-            databaseHelper.addMessage(message);
-            loadMessages();
+            appendSentMessage(message, null);
         }
         editTextMessage.setText("");
     }
 
     private void sendImageMessage(String imageUri, String caption) {
         long timestamp = System.currentTimeMillis();
-        Message message = new Message(imageUri, currentUsername, recipientName, timestamp, Message.MessageType.IMAGE, caption);
-        databaseHelper.addMessage(message);
-        loadMessages();
+        // A camera capture only existed to be sent, so it is deleted once the message is saved.
+        boolean isCameraCapture = currentPhotoPath != null
+                && imageUri.equals(Uri.fromFile(new File(currentPhotoPath)).toString());
+        ImageIngestor.getInstance(this).ingest(imageUri, isCameraCapture, new ChatRepository.Callback<ImageIngestor.Result>() {
+            @Override
+            public void onResult(ImageIngestor.Result stored) {
+                Message message = new Message(stored.uri, currentUsername, recipientName, timestamp,
+                        Message.MessageType.IMAGE, caption);
+                message.setDimensions(stored.width, stored.height);
+                message.setPlaceholder(stored.placeholder);
+                appendSentMessage(message, stored);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                ChatRepository.Callback.super.onError(e);
+                Toast.makeText(ChatActivity.this, "Failed to send image.", Toast.LENGTH_SHORT).show();
+            }
+        });
+        if (isCameraCapture) {
+            currentPhotoPath = null;
+        }
+    }
+
+    private void appendSentMessage(Message message, @Nullable ImageIngestor.Result media) {
+        ChatRepository.Callback<Long> onSaved = messageId -> {
+            if (messageId == -1) {
+                Toast.makeText(this, "Failed to send message.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            messagePager.appendNewMessage(message, this::scrollToNewest);
+        };
+        if (media != null) {
+            repository.addImageMessage(message, media, onSaved);
+        } else {
+            repository.addMessage(message, onSaved);
+        }
     }
 
     @Override
@@ -273,13 +369,21 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
             public boolean onQueryTextSubmit(String query) { return false; }
             @Override
             public boolean onQueryTextChange(String newText) {
-                messageAdapter.filter(newText);
+                conversationSearch.onQueryChanged(newText);
                 return false;
             }
         });
         return true;
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (conversationSearch != null) {
+            conversationSearch.release();
+        }
+    }
+
     @Override
     public boolean onSupportNavigateUp() {
         onBackPressed();
@@ -330,7 +434,8 @@ public class ChatActivity extends AppCompatActivity implements MessageAdapter.Se
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             int itemId = item.getItemId();
             if (itemId == R.id.action_delete) {
-                messageAdapter.deleteSelectedMessages();
+                // The pager keeps its own copy of each page and must forget them too.
+                messageAdapter.deleteSelectedMessages(messagePager::removeMessages);
                 mode.finish();
                 return true;
             } else if (itemId == R.id.action_edit) {
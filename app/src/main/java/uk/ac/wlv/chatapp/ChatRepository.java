@@ -0,0 +1,249 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous front for {@link DatabaseHelper}. Writes run one at a time on a dedicated writer
+ * thread so they never contend for the write lock; reads run on a small pool, which WAL lets
+ * proceed alongside the writer. Results are delivered back on the main thread.
+ */
+public class ChatRepository {
+
+    private static final String TAG = "ChatRepository";
+    // Matches the number of read connections the framework keeps open for a WAL database.
+    private static final int READER_THREADS = 3;
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        default void onError(Exception e) {
+            Log.e(TAG, "Database task failed", e);
+        }
+    }
+
+    private static ChatRepository instance;
+
+    private final DatabaseHelper databaseHelper;
+    private final ImageIngestor imageIngestor;
+    private final ExecutorService writeExecutor;
+    private final ExecutorService readExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MessageCache messageCache =
+            new MessageCache(MessageCache.DEFAULT_MAX_CONVERSATIONS, MessageCache.DEFAULT_MAX_BYTES);
+
+    public static synchronized ChatRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatRepository(DatabaseHelper.getInstance(context), ImageIngestor.getInstance(context));
+        }
+        return instance;
+    }
+
+    private ChatRepository(DatabaseHelper databaseHelper, ImageIngestor imageIngestor) {
+        this.databaseHelper = databaseHelper;
+        this.imageIngestor = imageIngestor;
+        this.writeExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "db-writer"));
+        AtomicInteger readerCount = new AtomicInteger();
+        this.readExecutor = Executors.newFixedThreadPool(READER_THREADS,
+                r -> new Thread(r, "db-reader-" + readerCount.incrementAndGet()));
+    }
+
+    // --- Users ---
+
+    public Future<?> checkUser(String username, String password, Callback<Boolean> callback) {
+        return read(() -> databaseHelper.checkUser(username, password), callback);
+    }
+
+    /** Adds the user unless the name is taken; the result says whether the user was added. */
+    public Future<?> registerUser(User user, Callback<Boolean> callback) {
+        // Runs on the writer so two sign-ups with the same name cannot both pass the check.
+        return write(() -> {
+            if (databaseHelper.checkUser(user.getName())) {
+                return false;
+            }
+            databaseHelper.addUser(user);
+            return true;
+        }, callback);
+    }
+
+    public Future<?> getUserId(String username, Callback<Long> callback) {
+        return read(() -> databaseHelper.getUserId(username), callback);
+    }
+
+    public Future<?> getConversationSummaries(String currentUsername, Callback<List<User>> callback) {
+        return read(() -> databaseHelper.getConversationSummaries(currentUsername), callback);
+    }
+
+    // --- Messages ---
+
+    /**
+     * Returns the newest {@code limit} messages of a conversation, oldest first. Recently opened
+     * conversations are answered from memory without touching the database.
+     */
+    public Future<?> getNewestMessages(String user1, String user2, int limit, Callback<List<Message>> callback) {
+        long cachedId = databaseHelper.cachedConversationId(user1, user2);
+        List<Message> cached = cachedId != -1 ? messageCache.get(cachedId, limit) : null;
+        if (cached != null) {
+            mainHandler.post(() -> callback.onResult(cached));
+            return CompletableFuture.completedFuture(null);
+        }
+        return read(() -> {
+            long version = messageCache.version();
+            List<Message> page = databaseHelper.getMessagesBefore(user1, user2, Long.MAX_VALUE, Long.MAX_VALUE, limit);
+            long conversationId = databaseHelper.conversationId(user1, user2);
+            if (conversationId != -1) {
+                messageCache.put(conversationId, page, limit, version);
+            }
+            return page;
+        }, callback);
+    }
+
+    public Future<?> getMessagesBefore(String user1, String user2, long timestamp, long messageId, int limit,
+                                       Callback<List<Message>> callback) {
+        return read(() -> databaseHelper.getMessagesBefore(user1, user2, timestamp, messageId, limit), callback);
+    }
+
+    public Future<?> getMessagesAfter(String user1, String user2, long timestamp, long messageId, int limit,
+                                      Callback<List<Message>> callback) {
+        return read(() -> databaseHelper.getMessagesAfter(user1, user2, timestamp, messageId, limit), callback);
+    }
+
+    /**
+     * Changes after every committed write to messages, in any conversation, so anything read
+     * while it had an earlier value may be out of date. Safe to call on the main thread.
+     */
+    public long messageVersion() {
+        return messageCache.version();
+    }
+
+    public Future<?> searchMessages(String username, String query, int limit, Callback<List<SearchResult>> callback) {
+        return read(() -> databaseHelper.searchMessages(username, query, limit), callback);
+    }
+
+    public Future<?> searchConversation(String user1, String user2, String query, int limit,
+                                        CancellationSignal cancellationSignal, Callback<List<Message>> callback) {
+        return read(() -> databaseHelper.searchConversation(user1, user2, query, limit, cancellationSignal), callback);
+    }
+
+    public Future<?> addMessage(Message message, Callback<Long> callback) {
+        return write(() -> cacheAdded(message, databaseHelper.addMessage(message)), callback);
+    }
+
+    /**
+     * Inserts an image message for an ingested copy, first writing the copy again if media
+     * collection removed it since it was ingested, then discards the ingested source if asked to.
+     */
+    public Future<?> addImageMessage(Message message, ImageIngestor.Result media, Callback<Long> callback) {
+        return write(() -> {
+            ImageIngestor.Result stored = media;
+            try {
+                // Collection also runs on this thread, so the copy stays until the insert counts it.
+                stored = imageIngestor.restore(media);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not restore " + media.uri, e);
+            }
+            long messageId = databaseHelper.addImageMessage(message, stored);
+            imageIngestor.discardSource(media);
+            return cacheAdded(message, messageId);
+        }, callback);
+    }
+
+    /**
+     * Inserts {@code messages} in batches of {@code batchSize}; the result is how many were added.
+     * Progress is reported on the main thread after each batch commits.
+     */
+    public Future<?> addMessages(List<Message> messages, int batchSize,
+                                 @Nullable DatabaseHelper.ProgressListener listener, Callback<Integer> callback) {
+        DatabaseHelper.ProgressListener mainThreadListener = listener == null ? null
+                : (inserted, total) -> mainHandler.post(() -> listener.onProgress(inserted, total));
+        return write(() -> {
+            try {
+                return databaseHelper.addMessages(messages, batchSize, mainThreadListener);
+            } finally {
+                // Batches may have committed even if a later one failed.
+                for (Message message : messages) {
+                    if (message.getSenderId() != Message.NO_USER && message.getReceiverId() != Message.NO_USER) {
+                        messageCache.invalidate(DatabaseHelper.conversationId(message.getSenderId(), message.getReceiverId()));
+                    }
+                }
+            }
+        }, callback);
+    }
+
+    public Future<?> updateMessage(long messageId, String newContent) {
+        return write(() -> {
+            databaseHelper.updateMessage(messageId, newContent);
+            messageCache.updateContent(messageId, newContent);
+            return null;
+        }, null);
+    }
+
+    public Future<?> updateMessageCaption(long messageId, String newCaption) {
+        return write(() -> {
+            databaseHelper.updateMessageCaption(messageId, newCaption);
+            messageCache.updateCaption(messageId, newCaption);
+            return null;
+        }, null);
+    }
+
+    /** {@code callback}, if any, runs once the delete has committed, so reads made from it see it. */
+    public Future<?> deleteMessages(List<Long> messageIds, @Nullable Callback<Void> callback) {
+        return write(() -> {
+            boolean mediaReleased = databaseHelper.deleteMessages(messageIds);
+            messageCache.removeMessages(messageIds);
+            if (mediaReleased) {
+                // Queued as its own task so the delete commits without waiting on file I/O.
+                write(databaseHelper::collectUnreferencedMedia, null);
+            }
+            return null;
+        }, callback);
+    }
+
+    // --- Plumbing ---
+
+    // Runs on the writer after the insert commits.
+    private long cacheAdded(Message message, long messageId) {
+        if (messageId != -1) {
+            // The insert has set the participant ids.
+            messageCache.append(DatabaseHelper.conversationId(message.getSenderId(), message.getReceiverId()), message);
+        }
+        return messageId;
+    }
+
+    private <T> Future<?> read(Callable<T> task, @Nullable Callback<T> callback) {
+        return submit(readExecutor, task, callback);
+    }
+
+    private <T> Future<?> write(Callable<T> task, @Nullable Callback<T> callback) {
+        return submit(writeExecutor, task, callback);
+    }
+
+    private <T> Future<?> submit(ExecutorService executor, Callable<T> task, @Nullable Callback<T> callback) {
+        return executor.submit(() -> {
+            try {
+                T result = task.call();
+                if (callback != null) {
+                    mainHandler.post(() -> callback.onResult(result));
+                }
+            } catch (Exception e) {
+                if (callback != null) {
+                    mainHandler.post(() -> callback.onError(e));
+                } else {
+                    Log.e(TAG, "Database task failed", e);
+                }
+            }
+        });
+    }
+}
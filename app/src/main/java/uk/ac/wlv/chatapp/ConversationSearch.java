@@ -0,0 +1,140 @@
+package uk.ac.wlv.chatapp;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Search-as-you-type for one conversation. Keystrokes are debounced, a newer query cancels the
+ * one in flight, and a query that only extends the previous one is answered by filtering the
+ * previous results in the background instead of going back to the database. Previous results are
+ * only filtered while {@link ChatRepository#messageVersion} is what it was when they were read;
+ * after a message is sent, edited or deleted the database is searched again.
+ * All methods must be called on the main thread.
+ */
+public class ConversationSearch {
+
+    static final long DEBOUNCE_MILLIS = 250;
+    static final int MAX_RESULTS = 500;
+
+    public interface Listener {
+        void onResults(List<Message> results);
+        void onCleared();
+    }
+
+    private final ChatRepository repository;
+    private final String user1;
+    private final String user2;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService narrowExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "search-narrow"));
+
+    private String pendingQuery;
+    private Future<?> inFlight;
+    private CancellationSignal inFlightSignal;
+    // Bumped on every keystroke; results tagged with an older generation are stale and dropped.
+    private int generation;
+    private List<String> lastTokens;
+    private List<Message> lastResults;
+    // The repository's message version when lastResults was read from the database.
+    private long lastVersion;
+
+    private final Runnable runPendingQuery = this::runQuery;
+
+    public ConversationSearch(ChatRepository repository, String user1, String user2, Listener listener) {
+        this.repository = repository;
+        this.user1 = user1;
+        this.user2 = user2;
+        this.listener = listener;
+    }
+
+    public void onQueryChanged(String text) {
+        mainHandler.removeCallbacks(runPendingQuery);
+        generation++;
+        cancelInFlight();
+        if (MessageSearchIndex.tokenize(text).isEmpty()) {
+            pendingQuery = null;
+            lastTokens = null;
+            lastResults = null;
+            listener.onCleared();
+            return;
+        }
+        pendingQuery = text;
+        mainHandler.postDelayed(runPendingQuery, DEBOUNCE_MILLIS);
+    }
+
+    /** Stops any pending or running query; call when the screen goes away. */
+    public void release() {
+        mainHandler.removeCallbacks(runPendingQuery);
+        generation++;
+        cancelInFlight();
+        narrowExecutor.shutdown();
+    }
+
+    private void runQuery() {
+        final int requestGeneration = generation;
+        final List<String> tokens = MessageSearchIndex.tokenize(pendingQuery);
+        final List<Message> previous = lastResults;
+        final long version = repository.messageVersion();
+        // A capped result set may be missing matches for the narrower query, so only complete sets are reused.
+        if (previous != null && previous.size() < MAX_RESULTS && lastVersion == version
+                && MessageSearchIndex.narrows(lastTokens, tokens)) {
+            inFlight = narrowExecutor.submit(() -> {
+                List<Message> narrowed = new ArrayList<>();
+                for (Message message : previous) {
+                    if (MessageSearchIndex.matches(message, tokens)) {
+                        narrowed.add(message);
+                    }
+                }
+                mainHandler.post(() -> publish(requestGeneration, tokens, narrowed, version));
+            });
+        } else {
+            inFlightSignal = new CancellationSignal();
+            inFlight = repository.searchConversation(user1, user2, pendingQuery, MAX_RESULTS, inFlightSignal,
+                    new ChatRepository.Callback<List<Message>>() {
+                        @Override
+                        public void onResult(List<Message> results) {
+                            publish(requestGeneration, tokens, results, version);
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            if (!(e instanceof OperationCanceledException)) {
+                                ChatRepository.Callback.super.onError(e);
+                            }
+                        }
+                    });
+        }
+    }
+
+    // version is the message version read before the results were, so a write during the read counts.
+    private void publish(int requestGeneration, List<String> tokens, List<Message> results, long version) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        inFlight = null;
+        inFlightSignal = null;
+        lastTokens = tokens;
+        lastResults = results;
+        lastVersion = version;
+        listener.onResults(results);
+    }
+
+    private void cancelInFlight() {
+        // The signal aborts a query already running in SQLite; the future drops one still queued.
+        if (inFlightSignal != null) {
+            inFlightSignal.cancel();
+            inFlightSignal = null;
+        }
+        if (inFlight != null) {
+            inFlight.cancel(false);
+            inFlight = null;
+        }
+    }
+}
@@ -5,30 +5,93 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
 
+    private static final String TAG = "DatabaseHelper";
     private static final String DATABASE_NAME = "UserManager.db";
-    // NOTE: Version is 7 to support captions. If you don't have captions yet, you can use 6.
-    private static final int DATABASE_VERSION = 7;
+    // NOTE: Version 7 added captions, 8 the conversation key and its index, 9 the conversation summaries,
+    // 10 the full-text search index, 11 image dimensions, 12 the media table, 13 image placeholders,
+    // 14 integer participant ids, 15 integer message types.
+    private static final int DATABASE_VERSION = 15;
 
     private static final String TABLE_USER = "user";
     private static final String TABLE_MESSAGE = "message";
+    private static final String TABLE_CONVERSATION_SUMMARY = "conversation_summary";
 
     private static final String COLUMN_USER_ID = "user_id";
     private static final String COLUMN_USER_NAME = "user_name";
     private static final String COLUMN_USER_EMAIL = "user_email";
     private static final String COLUMN_USER_PASSWORD = "user_password";
 
-    private static final String COLUMN_MESSAGE_ID = "message_id";
-    private static final String COLUMN_MESSAGE_CONTENT = "message_content";
-    private static final String COLUMN_SENDER = "sender";
-    private static final String COLUMN_RECEIVER = "receiver";
-    private static final String COLUMN_TIMESTAMP = "timestamp";
-    private static final String COLUMN_MESSAGE_TYPE = "message_type";
-    private static final String COLUMN_MESSAGE_CAPTION = "message_caption";
+    static final String COLUMN_MESSAGE_ID = "message_id";
+    static final String COLUMN_MESSAGE_CONTENT = "message_content";
+    static final String COLUMN_SENDER_ID = "sender_id";
+    static final String COLUMN_RECEIVER_ID = "receiver_id";
+    // Username columns the message table had before v14.
+    private static final String LEGACY_COLUMN_SENDER = "sender";
+    private static final String LEGACY_COLUMN_RECEIVER = "receiver";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_MESSAGE_TYPE = "message_type";
+    static final String COLUMN_MESSAGE_CAPTION = "message_caption";
+    private static final String COLUMN_CONVERSATION_ID = "conversation_id";
+    static final String COLUMN_MESSAGE_WIDTH = "message_width";
+    static final String COLUMN_MESSAGE_HEIGHT = "message_height";
+    static final String COLUMN_MESSAGE_PLACEHOLDER = "message_placeholder";
+    static final String COLUMN_MEDIA_ID = MediaTable.COLUMN_MEDIA_ID;
+
+    // One row per user and peer with the latest message between them, kept in step by every write.
+    private static final String COLUMN_SUMMARY_OWNER_ID = "owner_id";
+    private static final String COLUMN_SUMMARY_PEER_ID = "peer_id";
+    private static final String COLUMN_SUMMARY_LAST_MESSAGE_ID = "last_message_id";
+    private static final String COLUMN_SUMMARY_LAST_CONTENT = "last_message_content";
+    private static final String COLUMN_SUMMARY_LAST_TIMESTAMP = "last_timestamp";
+
+    static final String[] MESSAGE_COLUMNS = {COLUMN_MESSAGE_ID, COLUMN_MESSAGE_CONTENT, COLUMN_SENDER_ID,
+            COLUMN_RECEIVER_ID, COLUMN_TIMESTAMP, COLUMN_MESSAGE_TYPE, COLUMN_MESSAGE_CAPTION,
+            COLUMN_MESSAGE_WIDTH, COLUMN_MESSAGE_HEIGHT, COLUMN_MESSAGE_PLACEHOLDER, COLUMN_MEDIA_ID};
+
+    // The reads of one conversation. They are package-private so DatabaseBenchmarkTest can check
+    // that each one seeks on the conversation index and reads it in order, without a sort.
+    private static final String FROM_CONVERSATION = " FROM " + TABLE_MESSAGE + " WHERE " + COLUMN_CONVERSATION_ID + " = ?";
+    // The redundant "timestamp <= ?" gives SQLite a range it can seek on in the conversation index.
+    private static final String BEFORE_KEY = " AND " + COLUMN_TIMESTAMP + " <= ? AND (" + COLUMN_TIMESTAMP + " < ? OR "
+            + COLUMN_MESSAGE_ID + " < ?)";
+    private static final String AFTER_KEY = " AND " + COLUMN_TIMESTAMP + " >= ? AND (" + COLUMN_TIMESTAMP + " > ? OR "
+            + COLUMN_MESSAGE_ID + " > ?)";
+    private static final String OLDEST_FIRST = " ORDER BY " + COLUMN_TIMESTAMP + " ASC, " + COLUMN_MESSAGE_ID + " ASC";
+    private static final String NEWEST_FIRST = " ORDER BY " + COLUMN_TIMESTAMP + " DESC, " + COLUMN_MESSAGE_ID + " DESC";
+    private static final String SELECT_MESSAGES = "SELECT " + String.join(", ", MESSAGE_COLUMNS) + FROM_CONVERSATION;
+
+    /** Args: conversation id. */
+    static final String SQL_MESSAGES = SELECT_MESSAGES + OLDEST_FIRST;
+    /** Args: conversation id, timestamp, timestamp, message id, limit. Newest first. */
+    static final String SQL_MESSAGES_BEFORE = SELECT_MESSAGES + BEFORE_KEY + NEWEST_FIRST + " LIMIT ?";
+    /** Args: conversation id, timestamp, timestamp, message id, limit. */
+    static final String SQL_MESSAGES_AFTER = SELECT_MESSAGES + AFTER_KEY + OLDEST_FIRST + " LIMIT ?";
+    /** Args: conversation id. */
+    static final String SQL_LAST_MESSAGE = SELECT_MESSAGES + NEWEST_FIRST + " LIMIT 1";
+
+    // Rows per transaction for addMessages when the caller has no better figure.
+    static final int DEFAULT_INSERT_BATCH_SIZE = 1000;
+    // Ids bound per statement when deleting; well under SQLite's default limit of 999 parameters.
+    static final int DELETE_CHUNK_SIZE = 500;
+
+    static final String INDEX_MESSAGE_CONVERSATION = "idx_message_conversation";
+    static final String INDEX_USER_NAME = "idx_user_name";
 
     private final String CREATE_USER_TABLE = "CREATE TABLE " + TABLE_USER + "("
             + COLUMN_USER_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -36,73 +99,438 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             + COLUMN_USER_EMAIL + " TEXT,"
             + COLUMN_USER_PASSWORD + " TEXT" + ")";
 
-    private final String CREATE_MESSAGE_TABLE = "CREATE TABLE " + TABLE_MESSAGE + "("
-            + COLUMN_MESSAGE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
-            + COLUMN_MESSAGE_CONTENT + " TEXT,"
-            + COLUMN_SENDER + " TEXT,"
-            + COLUMN_RECEIVER + " TEXT,"
-            + COLUMN_TIMESTAMP + " INTEGER,"
-            + COLUMN_MESSAGE_TYPE + " TEXT,"
-            + COLUMN_MESSAGE_CAPTION + " TEXT" + ")";
+    // Users someone has signed up as. Placeholder rows made for names that only appear in messages
+    // have no password and are never listed as contacts.
+    private static final String SIGNED_UP_USER = COLUMN_USER_PASSWORD + " IS NOT NULL";
+
+    // Sign-in and every name-to-id lookup seek on this; it also keeps two accounts from sharing a name.
+    private final String CREATE_USER_NAME_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_USER_NAME
+            + " ON " + TABLE_USER + "(" + COLUMN_USER_NAME + ")";
+
+    private final String CREATE_MESSAGE_TABLE = createMessageTable(TABLE_MESSAGE);
+
+    private static String createMessageTable(String table) {
+        return "CREATE TABLE " + table + "("
+                + COLUMN_MESSAGE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COLUMN_MESSAGE_CONTENT + " TEXT,"
+                + COLUMN_SENDER_ID + " INTEGER NOT NULL REFERENCES " + TABLE_USER + "(" + COLUMN_USER_ID + "),"
+                + COLUMN_RECEIVER_ID + " INTEGER NOT NULL REFERENCES " + TABLE_USER + "(" + COLUMN_USER_ID + "),"
+                + COLUMN_TIMESTAMP + " INTEGER,"
+                + COLUMN_MESSAGE_TYPE + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_MESSAGE_CAPTION + " TEXT,"
+                + COLUMN_CONVERSATION_ID + " INTEGER NOT NULL,"
+                + COLUMN_MESSAGE_WIDTH + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_MESSAGE_HEIGHT + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_MESSAGE_PLACEHOLDER + " BLOB,"
+                + COLUMN_MEDIA_ID + " INTEGER REFERENCES " + MediaTable.TABLE_MEDIA + "(" + COLUMN_MEDIA_ID + ")" + ")";
+    }
+
+    // Lets every conversation query seek straight to its rows already ordered by time.
+    private final String CREATE_MESSAGE_CONVERSATION_INDEX = "CREATE INDEX IF NOT EXISTS " + INDEX_MESSAGE_CONVERSATION
+            + " ON " + TABLE_MESSAGE + "(" + COLUMN_CONVERSATION_ID + ", " + COLUMN_TIMESTAMP + ")";
+
+    private final String CREATE_CONVERSATION_SUMMARY_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_CONVERSATION_SUMMARY + "("
+            + COLUMN_SUMMARY_OWNER_ID + " INTEGER NOT NULL,"
+            + COLUMN_SUMMARY_PEER_ID + " INTEGER NOT NULL,"
+            + COLUMN_SUMMARY_LAST_MESSAGE_ID + " INTEGER,"
+            + COLUMN_SUMMARY_LAST_CONTENT + " TEXT,"
+            + COLUMN_SUMMARY_LAST_TIMESTAMP + " INTEGER,"
+            + "PRIMARY KEY (" + COLUMN_SUMMARY_OWNER_ID + ", " + COLUMN_SUMMARY_PEER_ID + "))";
 
     private final String DROP_USER_TABLE = "DROP TABLE IF EXISTS " + TABLE_USER;
     private final String DROP_MESSAGE_TABLE = "DROP TABLE IF EXISTS " + TABLE_MESSAGE;
+    private final String DROP_CONVERSATION_SUMMARY_TABLE = "DROP TABLE IF EXISTS " + TABLE_CONVERSATION_SUMMARY;
+
+    // Each step alters the schema in place and must be safe to re-run after an interrupted upgrade.
+    // Package-private so benchmarks can stop an upgrade at an intermediate version.
+    final DatabaseMigrator migrator = new DatabaseMigrator(6)
+            .add(new DatabaseMigrator.Migration(7, "message captions") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    DatabaseMigrator.addColumnIfMissing(db, TABLE_MESSAGE, COLUMN_MESSAGE_CAPTION, "TEXT");
+                }
+            })
+            .add(new DatabaseMigrator.Migration(8, "conversation key and index") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // The username-based key and its index are superseded by v14, which rebuilds the
+                    // message table with an integer key computed from the participant ids.
+                }
+            })
+            .add(new DatabaseMigrator.Migration(9, "conversation summaries") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Built by v14, keyed by participant id.
+                }
+            })
+            .add(new DatabaseMigrator.Migration(10, "full-text search index") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    MessageSearchIndex.rebuild(db);
+                }
+            })
+            .add(new DatabaseMigrator.Migration(11, "image dimensions") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Existing images stay at 0x0, which readers treat as unknown.
+                    DatabaseMigrator.addColumnIfMissing(db, TABLE_MESSAGE, COLUMN_MESSAGE_WIDTH, "INTEGER NOT NULL DEFAULT 0");
+                    DatabaseMigrator.addColumnIfMissing(db, TABLE_MESSAGE, COLUMN_MESSAGE_HEIGHT, "INTEGER NOT NULL DEFAULT 0");
+                }
+            })
+            .add(new DatabaseMigrator.Migration(12, "media table") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    MediaTable.create(db);
+                    DatabaseMigrator.addColumnIfMissing(db, TABLE_MESSAGE, COLUMN_MEDIA_ID,
+                            "INTEGER REFERENCES " + MediaTable.TABLE_MEDIA + "(" + COLUMN_MEDIA_ID + ")");
+                    MediaTable.adoptIngestedFiles(db);
+                }
+            })
+            .add(new DatabaseMigrator.Migration(13, "image placeholders") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Older images have none and show an empty box of the right size until decoded.
+                    DatabaseMigrator.addColumnIfMissing(db, TABLE_MESSAGE, COLUMN_MESSAGE_PLACEHOLDER, "BLOB");
+                }
+            })
+            .add(new DatabaseMigrator.Migration(14, "integer participant ids") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    migrateToParticipantIds(db);
+                }
+            })
+            .add(new DatabaseMigrator.Migration(15, "integer message types") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    migrateToMessageTypeCodes(db);
+                }
+            });
 
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private static DatabaseHelper instance;
+
+    /**
+     * Returns the process-wide helper. The helper owns a single connection pool that is opened
+     * lazily on first use and kept open for the life of the process, so callers must not close it.
+     */
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
+
+    private final boolean assertOffMainThread;
+    // Users are never renamed or removed, so both directions can be cached for the life of the helper.
+    private final ConcurrentHashMap<String, Long> userIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> userNames = new ConcurrentHashMap<>();
+
+    // Package-private so instrumented tests can work against a scratch database file.
+    DatabaseHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        // WAL lets readers run concurrently with the writer and avoids rewriting pages on every commit.
+        setWriteAheadLoggingEnabled(true);
+        assertOffMainThread = ChatApplication.isDebuggable(context);
+    }
+
+    private SQLiteDatabase getDatabase() {
+        if (assertOffMainThread && Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("Database accessed on the main thread; use ChatRepository instead.");
+        }
+        // SQLiteOpenHelper caches the opened database, so this is cheap after the first call.
+        return getWritableDatabase();
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_USER_TABLE);
+        db.execSQL(CREATE_USER_NAME_INDEX);
         db.execSQL(CREATE_MESSAGE_TABLE);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_CONVERSATION_SUMMARY_TABLE);
+        MessageSearchIndex.create(db);
+        MediaTable.create(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(DROP_USER_TABLE);
-        db.execSQL(DROP_MESSAGE_TABLE);
-        onCreate(db);
+        if (!migrator.canMigrate(oldVersion)) {
+            // Schemas older than v6 predate the migration steps and cannot be upgraded in place.
+            db.execSQL(DROP_USER_TABLE);
+            db.execSQL(DROP_MESSAGE_TABLE);
+            db.execSQL(DROP_CONVERSATION_SUMMARY_TABLE);
+            MessageSearchIndex.drop(db);
+            MediaTable.drop(db);
+            onCreate(db);
+            return;
+        }
+        migrator.migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Returns the key shared by both directions of a conversation, so that a single indexed
+     * equality lookup replaces the two-way sender/receiver OR filter: the smaller user id in the
+     * high 32 bits, the larger in the low.
+     */
+    static long conversationId(long userId1, long userId2) {
+        return (Math.min(userId1, userId2) << 32) | Math.max(userId1, userId2);
+    }
+
+    // The key for two usernames, or -1 if either has never been seen, in which case there are no messages.
+    long conversationId(String user1, String user2) {
+        long userId1 = userId(user1, false);
+        long userId2 = userId(user2, false);
+        return userId1 == -1 || userId2 == -1 ? -1 : conversationId(userId1, userId2);
+    }
+
+    /**
+     * Like {@link #conversationId(String, String)}, but answers only from the ids already cached
+     * and never touches the database, so it is safe on the main thread. Returns -1 if either
+     * name has not been looked up yet.
+     */
+    long cachedConversationId(@Nullable String user1, @Nullable String user2) {
+        Long userId1 = user1 != null ? userIds.get(user1) : null;
+        Long userId2 = user2 != null ? userIds.get(user2) : null;
+        return userId1 == null || userId2 == null ? -1 : conversationId(userId1, userId2);
+    }
+
+    /** Returns the user id of {@code username}, or -1 if there is no such user. */
+    public long getUserId(String username) {
+        return userId(username, false);
+    }
+
+    /**
+     * Sets the participant ids of a message composed by name, adding placeholder users as needed.
+     * Returns false if either participant is missing. Must not run inside a transaction that may
+     * roll back, since new ids are cached.
+     */
+    private boolean resolveParticipants(Message message) {
+        if (message.getSenderId() != Message.NO_USER && message.getReceiverId() != Message.NO_USER) {
+            return true;
+        }
+        long senderId = userId(message.getSender(), true);
+        long receiverId = userId(message.getReceiver(), true);
+        if (senderId == -1 || receiverId == -1) {
+            return false;
+        }
+        message.setParticipantIds(senderId, receiverId);
+        return true;
+    }
+
+    /**
+     * Returns the id of the user named {@code username}. If there is none and {@code create} is
+     * set, a placeholder row with just the name is added, so messages from someone who has not
+     * signed up on this device still have a participant to point at; signing up claims it.
+     * Returns -1 if there is no such user and none was created. Creating must not happen inside
+     * a transaction that may roll back, since the id is cached.
+     */
+    private long userId(@Nullable String username, boolean create) {
+        if (username == null) {
+            return -1;
+        }
+        Long cached = userIds.get(username);
+        if (cached != null) {
+            return cached;
+        }
+        SQLiteDatabase db = getDatabase();
+        long id = -1;
+        Cursor cursor = db.query(TABLE_USER, new String[]{COLUMN_USER_ID}, COLUMN_USER_NAME + " = ?",
+                new String[]{username}, null, null, null);
+        if (cursor.moveToFirst()) {
+            id = cursor.getLong(0);
+        }
+        cursor.close();
+        if (id == -1 && create) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_USER_NAME, username);
+            id = db.insert(TABLE_USER, null, values);
+        }
+        if (id != -1) {
+            userIds.put(username, id);
+            userNames.put(id, username);
+        }
+        return id;
+    }
+
+    @Nullable
+    private String userName(long userId) {
+        String cached = userNames.get(userId);
+        if (cached != null) {
+            return cached;
+        }
+        String name = null;
+        Cursor cursor = getDatabase().query(TABLE_USER, new String[]{COLUMN_USER_NAME}, COLUMN_USER_ID + " = ?",
+                new String[]{String.valueOf(userId)}, null, null, null);
+        if (cursor.moveToFirst()) {
+            name = cursor.getString(0);
+        }
+        cursor.close();
+        if (name != null) {
+            userNames.put(userId, name);
+            userIds.put(name, userId);
+        }
+        return name;
+    }
+
+    /**
+     * Moves messages from username columns to integer participant ids. Duplicate usernames are
+     * merged into one row (see {@link #mergeDuplicateUsers}) and the name made unique; every name a message mentions gets
+     * a user row; then the message table is rebuilt with sender_id, receiver_id and an integer
+     * conversation key, and the summaries and search index derived from it are rebuilt.
+     * Messages with no sender or receiver belong to no conversation and are dropped.
+     */
+    private void migrateToParticipantIds(SQLiteDatabase db) {
+        mergeDuplicateUsers(db);
+        db.execSQL(CREATE_USER_NAME_INDEX);
+
+        if (!DatabaseMigrator.hasColumn(db, TABLE_MESSAGE, COLUMN_SENDER_ID)) {
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_USER + " (" + COLUMN_USER_NAME + ") SELECT "
+                    + LEGACY_COLUMN_SENDER + " FROM " + TABLE_MESSAGE + " WHERE " + LEGACY_COLUMN_SENDER + " IS NOT NULL"
+                    + " UNION SELECT " + LEGACY_COLUMN_RECEIVER + " FROM " + TABLE_MESSAGE
+                    + " WHERE " + LEGACY_COLUMN_RECEIVER + " IS NOT NULL");
+
+            String rebuilt = TABLE_MESSAGE + "_v14";
+            db.execSQL("DROP TABLE IF EXISTS " + rebuilt);
+            db.execSQL(createMessageTable(rebuilt));
+            String copied = COLUMN_MESSAGE_CONTENT + ", " + COLUMN_TIMESTAMP + ", " + COLUMN_MESSAGE_TYPE + ", "
+                    + COLUMN_MESSAGE_CAPTION + ", " + COLUMN_MESSAGE_WIDTH + ", " + COLUMN_MESSAGE_HEIGHT + ", "
+                    + COLUMN_MESSAGE_PLACEHOLDER + ", " + COLUMN_MEDIA_ID;
+            db.execSQL("INSERT INTO " + rebuilt + " (" + COLUMN_MESSAGE_ID + ", " + copied + ", " + COLUMN_SENDER_ID
+                    + ", " + COLUMN_RECEIVER_ID + ", " + COLUMN_CONVERSATION_ID + ") SELECT m." + COLUMN_MESSAGE_ID
+                    + ", m." + copied.replace(", ", ", m.") + ", s." + COLUMN_USER_ID + ", r." + COLUMN_USER_ID
+                    + ", (MIN(s." + COLUMN_USER_ID + ", r." + COLUMN_USER_ID + ") << 32) | MAX(s." + COLUMN_USER_ID
+                    + ", r." + COLUMN_USER_ID + ")"
+                    + " FROM " + TABLE_MESSAGE + " m"
+                    + " JOIN " + TABLE_USER + " s ON s." + COLUMN_USER_NAME + " = m." + LEGACY_COLUMN_SENDER
+                    + " JOIN " + TABLE_USER + " r ON r." + COLUMN_USER_NAME + " = m." + LEGACY_COLUMN_RECEIVER);
+            // Dropping the old table also drops its indexes and search triggers; both are recreated below.
+            db.execSQL("DROP TABLE " + TABLE_MESSAGE);
+            db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + TABLE_MESSAGE);
+        }
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+
+        db.execSQL(DROP_CONVERSATION_SUMMARY_TABLE);
+        db.execSQL(CREATE_CONVERSATION_SUMMARY_TABLE);
+        Cursor cursor = db.query(true, TABLE_MESSAGE, new String[]{COLUMN_SENDER_ID, COLUMN_RECEIVER_ID},
+                null, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            refreshConversationSummary(db, cursor.getLong(0), cursor.getLong(1));
+        }
+        cursor.close();
+
+        MessageSearchIndex.rebuild(db);
+        // Dropped messages no longer hold their media.
+        MediaTable.recountReferences(db);
+    }
+
+    /**
+     * Leaves one row per username so the name can be made unique. The row kept is the oldest one
+     * with a password, or the oldest row if none has one, so the surviving account signs in with
+     * the credentials it was first registered with whichever order the rows were written in.
+     * Messages still refer to users by name at this point, so the dropped rows' messages follow
+     * the name to the kept row. Each merged name is logged with the number of rows dropped.
+     */
+    private static void mergeDuplicateUsers(SQLiteDatabase db) {
+        String kept = "temp.user_v14_kept";
+        db.execSQL("DROP TABLE IF EXISTS " + kept);
+        db.execSQL("CREATE TABLE " + kept + " AS SELECT COALESCE(MIN(CASE WHEN " + COLUMN_USER_PASSWORD
+                + " IS NOT NULL THEN " + COLUMN_USER_ID + " END), MIN(" + COLUMN_USER_ID + ")) AS " + COLUMN_USER_ID
+                + " FROM " + TABLE_USER + " WHERE " + COLUMN_USER_NAME + " IS NOT NULL GROUP BY " + COLUMN_USER_NAME);
+        String dropped = COLUMN_USER_NAME + " IS NOT NULL AND " + COLUMN_USER_ID
+                + " NOT IN (SELECT " + COLUMN_USER_ID + " FROM " + kept + ")";
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_USER_NAME + ", COUNT(*) FROM " + TABLE_USER
+                + " WHERE " + dropped + " GROUP BY " + COLUMN_USER_NAME, null);
+        int total = 0;
+        while (cursor.moveToNext()) {
+            total += cursor.getInt(1);
+            Log.w(TAG, "Merging " + cursor.getInt(1) + " duplicate account(s) named '" + cursor.getString(0)
+                    + "' into the oldest one");
+        }
+        cursor.close();
+        if (total > 0) {
+            int deleted = db.delete(TABLE_USER, dropped, null);
+            Log.w(TAG, "Dropped " + deleted + " duplicate user row(s)");
+        }
+        db.execSQL("DROP TABLE " + kept);
+    }
+
+    /**
+     * Replaces the message_type names with {@link Message.MessageType#code}. The column's
+     * declared type can only change by rebuilding the table; a table v14 already rebuilt with the
+     * integer column only needs the names it copied over converted. Unknown or missing types
+     * become TEXT, as they were read before.
+     */
+    private void migrateToMessageTypeCodes(SQLiteDatabase db) {
+        String typeCode = "CASE " + COLUMN_MESSAGE_TYPE
+                + " WHEN '" + Message.MessageType.IMAGE.name() + "' THEN " + Message.MessageType.IMAGE.code
+                + " ELSE " + Message.MessageType.TEXT.code + " END";
+        if ("INTEGER".equalsIgnoreCase(DatabaseMigrator.columnType(db, TABLE_MESSAGE, COLUMN_MESSAGE_TYPE))) {
+            db.execSQL("UPDATE " + TABLE_MESSAGE + " SET " + COLUMN_MESSAGE_TYPE + " = " + typeCode
+                    + " WHERE typeof(" + COLUMN_MESSAGE_TYPE + ") != 'integer'");
+        } else {
+            String rebuilt = TABLE_MESSAGE + "_v15";
+            db.execSQL("DROP TABLE IF EXISTS " + rebuilt);
+            db.execSQL(createMessageTable(rebuilt));
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (String column : MESSAGE_COLUMNS) {
+                if (columns.length() > 0) {
+                    columns.append(", ");
+                    values.append(", ");
+                }
+                columns.append(column);
+                values.append(column.equals(COLUMN_MESSAGE_TYPE) ? typeCode : column);
+            }
+            columns.append(", ").append(COLUMN_CONVERSATION_ID);
+            values.append(", ").append(COLUMN_CONVERSATION_ID);
+            db.execSQL("INSERT INTO " + rebuilt + " (" + columns + ") SELECT " + values + " FROM " + TABLE_MESSAGE);
+            db.execSQL("DROP TABLE " + TABLE_MESSAGE);
+            db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + TABLE_MESSAGE);
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        }
+        // The search triggers filter on the type code, and the rebuild above dropped them.
+        MessageSearchIndex.rebuild(db);
     }
 
     public void addUser(User user) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteDatabase db = getDatabase();
         ContentValues values = new ContentValues();
-        values.put(COLUMN_USER_NAME, user.getName());
         values.put(COLUMN_USER_EMAIL, user.getEmail());
         values.put(COLUMN_USER_PASSWORD, user.getPassword());
-        db.insert(TABLE_USER, null, values);
-        db.close();
+        // Claim the placeholder row if messages already named this user, keeping its id.
+        if (db.update(TABLE_USER, values, COLUMN_USER_NAME + " = ? AND " + COLUMN_USER_PASSWORD + " IS NULL",
+                new String[]{user.getName()}) == 0) {
+            values.put(COLUMN_USER_NAME, user.getName());
+            db.insert(TABLE_USER, null, values);
+        }
     }
 
+    /** Returns true if someone has signed up under {@code username}. */
     public boolean checkUser(String username) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = getDatabase();
         Cursor cursor = db.query(TABLE_USER, new String[]{COLUMN_USER_ID},
-                COLUMN_USER_NAME + " = ?",
+                COLUMN_USER_NAME + " = ? AND " + COLUMN_USER_PASSWORD + " IS NOT NULL",
                 new String[]{username}, null, null, null);
         int cursorCount = cursor.getCount();
         cursor.close();
-        db.close();
         return cursorCount > 0;
     }
 
     public boolean checkUser(String username, String password) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = getDatabase();
         String selection = COLUMN_USER_NAME + " = ? AND " + COLUMN_USER_PASSWORD + " = ?";
         String[] selectionArgs = {username, password};
         Cursor cursor = db.query(TABLE_USER, new String[]{COLUMN_USER_ID},
                 selection, selectionArgs, null, null, null);
         int cursorCount = cursor.getCount();
         cursor.close();
-        db.close();
         return cursorCount > 0;
     }
 
     public List<User> getAllUsers() {
         List<User> userList = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
+        SQLiteDatabase db = getDatabase();
         Cursor cursor = db.query(TABLE_USER, new String[]{COLUMN_USER_NAME},
-                null, null, null, null, null);
+                SIGNED_UP_USER, null, null, null, null);
 
         if (cursor.moveToFirst()) {
             do {
@@ -112,114 +540,369 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             } while (cursor.moveToNext());
         }
         cursor.close();
-        db.close();
         return userList;
     }
 
-    public void addMessage(Message message) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    /** Inserts the message and returns its new row id, or -1 if the insert failed. */
+    public long addMessage(Message message) {
+        return addMessage(message, null);
+    }
+
+    /**
+     * Inserts an image message that points at an ingested copy, registering the copy in the media
+     * table or adding a reference to it if the same image was sent before. Returns the new row
+     * id, or -1 if the insert failed or the copy has gone.
+     */
+    public long addImageMessage(Message message, ImageIngestor.Result media) {
+        return addMessage(message, media);
+    }
+
+    private long addMessage(Message message, @Nullable ImageIngestor.Result media) {
+        SQLiteDatabase db = getDatabase();
+        // Resolved before the transaction, since a placeholder user created here is cached.
+        if (!resolveParticipants(message)) {
+            return -1;
+        }
+        long senderId = message.getSenderId();
+        long receiverId = message.getReceiverId();
         ContentValues values = new ContentValues();
         values.put(COLUMN_MESSAGE_CONTENT, message.getContent());
-        values.put(COLUMN_SENDER, message.getSender());
-        values.put(COLUMN_RECEIVER, message.getReceiver());
+        values.put(COLUMN_SENDER_ID, senderId);
+        values.put(COLUMN_RECEIVER_ID, receiverId);
         values.put(COLUMN_TIMESTAMP, message.getTimestamp());
-        values.put(COLUMN_MESSAGE_TYPE, message.getType().name());
+        values.put(COLUMN_MESSAGE_TYPE, message.getType().code);
         values.put(COLUMN_MESSAGE_CAPTION, message.getCaption());
-        db.insert(TABLE_MESSAGE, null, values);
-        db.close();
+        values.put(COLUMN_CONVERSATION_ID, conversationId(senderId, receiverId));
+        values.put(COLUMN_MESSAGE_WIDTH, message.getWidth());
+        values.put(COLUMN_MESSAGE_HEIGHT, message.getHeight());
+        values.put(COLUMN_MESSAGE_PLACEHOLDER, message.getPlaceholder());
+        long messageId = -1;
+        db.beginTransaction();
+        try {
+            if (media != null) {
+                // Media collection runs on this same writer thread, so a file that exists now stays
+                // until the reference below is counted. ChatRepository restores a collected copy
+                // first, so one only goes missing here if it could not be written again.
+                String path = Uri.parse(media.uri).getPath();
+                if (path == null || !new File(path).isFile()) {
+                    Log.w(TAG, "Ingested image is gone: " + media.uri);
+                    return -1;
+                }
+                message.setMediaId(MediaTable.acquire(db, media));
+                values.put(COLUMN_MEDIA_ID, message.getMediaId());
+            }
+            messageId = db.insert(TABLE_MESSAGE, null, values);
+            if (messageId != -1) {
+                refreshConversationSummary(db, senderId, receiverId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        message.setId(messageId);
+        return messageId;
     }
 
-    public List<Message> getMessages(String user1, String user2) {
-        List<Message> messageList = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-        String[] columns = {COLUMN_MESSAGE_CONTENT, COLUMN_SENDER, COLUMN_RECEIVER, COLUMN_TIMESTAMP, COLUMN_MESSAGE_TYPE, COLUMN_MESSAGE_CAPTION};
-        Cursor cursor = db.query(TABLE_MESSAGE, columns,
-                "(" + COLUMN_SENDER + " = ? AND " + COLUMN_RECEIVER + " = ?) OR ("
-                        + COLUMN_SENDER + " = ? AND " + COLUMN_RECEIVER + " = ?)",
-                new String[]{user1, user2, user2, user1}, null, null, COLUMN_TIMESTAMP + " ASC");
+    /** Told after each batch of {@link #addMessages} commits. */
+    public interface ProgressListener {
+        void onProgress(int inserted, int total);
+    }
 
+    /**
+     * Inserts {@code messages} through one compiled statement, committing every {@code batchSize}
+     * rows, and sets each message's new row id. Each batch refreshes the summary of every
+     * conversation it touched once, rather than once per row. If a batch fails it is rolled back
+     * and the exception thrown; batches already committed stay.
+     *
+     * Meant for imported or received history, so no media references are taken; send images
+     * through {@link #addImageMessage}.
+     *
+     * @return the number of rows inserted
+     */
+    public int addMessages(List<Message> messages, int batchSize, @Nullable ProgressListener listener) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        SQLiteDatabase db = getDatabase();
+        // Participants are resolved up front, outside the batch transactions, since new ones are cached.
+        for (Message message : messages) {
+            if (!resolveParticipants(message)) {
+                throw new IllegalArgumentException("Message without a sender or receiver");
+            }
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_MESSAGE + " ("
+                + COLUMN_MESSAGE_CONTENT + ", " + COLUMN_SENDER_ID + ", " + COLUMN_RECEIVER_ID + ", "
+                + COLUMN_TIMESTAMP + ", " + COLUMN_MESSAGE_TYPE + ", " + COLUMN_MESSAGE_CAPTION + ", "
+                + COLUMN_CONVERSATION_ID + ", " + COLUMN_MESSAGE_WIDTH + ", " + COLUMN_MESSAGE_HEIGHT + ", "
+                + COLUMN_MESSAGE_PLACEHOLDER + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        int inserted = 0;
+        try {
+            while (inserted < messages.size()) {
+                int end = Math.min(inserted + batchSize, messages.size());
+                Map<Long, long[]> conversations = new LinkedHashMap<>();
+                db.beginTransaction();
+                try {
+                    for (int i = inserted; i < end; i++) {
+                        Message message = messages.get(i);
+                        long senderId = message.getSenderId();
+                        long receiverId = message.getReceiverId();
+                        long conversationId = conversationId(senderId, receiverId);
+                        bindStringOrNull(insert, 1, message.getContent());
+                        insert.bindLong(2, senderId);
+                        insert.bindLong(3, receiverId);
+                        insert.bindLong(4, message.getTimestamp());
+                        insert.bindLong(5, message.getType().code);
+                        bindStringOrNull(insert, 6, message.getCaption());
+                        insert.bindLong(7, conversationId);
+                        insert.bindLong(8, message.getWidth());
+                        insert.bindLong(9, message.getHeight());
+                        if (message.getPlaceholder() != null) {
+                            insert.bindBlob(10, message.getPlaceholder());
+                        } else {
+                            insert.bindNull(10);
+                        }
+                        message.setId(insert.executeInsert());
+                        conversations.put(conversationId, new long[]{senderId, receiverId});
+                    }
+                    refreshConversationSummaries(db, new ArrayList<>(conversations.values()));
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                inserted = end;
+                if (listener != null) {
+                    listener.onProgress(inserted, messages.size());
+                }
+            }
+        } finally {
+            insert.close();
+        }
+        return inserted;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * Returns every user except {@code currentUsername} with the last message exchanged with them,
+     * most recent conversation first, in a single query over the summary table.
+     */
+    public List<User> getConversationSummaries(String currentUsername) {
+        List<User> userList = new ArrayList<>();
+        SQLiteDatabase db = getDatabase();
+        String ownerId = String.valueOf(userId(currentUsername, false));
+        Cursor cursor = db.rawQuery("SELECT u." + COLUMN_USER_NAME + ", s." + COLUMN_SUMMARY_LAST_CONTENT
+                        + ", s." + COLUMN_SUMMARY_LAST_TIMESTAMP
+                        + " FROM " + TABLE_USER + " u LEFT JOIN " + TABLE_CONVERSATION_SUMMARY + " s"
+                        + " ON s." + COLUMN_SUMMARY_OWNER_ID + " = ? AND s." + COLUMN_SUMMARY_PEER_ID + " = u." + COLUMN_USER_ID
+                        + " WHERE u." + SIGNED_UP_USER + " AND u." + COLUMN_USER_ID + " != ?"
+                        + " ORDER BY IFNULL(s." + COLUMN_SUMMARY_LAST_TIMESTAMP + ", 0) DESC",
+                new String[]{ownerId, ownerId});
+        while (cursor.moveToNext()) {
+            User user = new User();
+            user.setName(cursor.getString(0));
+            if (!cursor.isNull(2)) {
+                user.setLastMessage(cursor.getString(1));
+                user.setLastMessageTimestamp(cursor.getLong(2));
+            }
+            userList.add(user);
+        }
+        cursor.close();
+        return userList;
+    }
+
+    // Rewrites both directions of the conversation's summary from its newest row, found through the index.
+    private void refreshConversationSummary(SQLiteDatabase db, long userId1, long userId2) {
+        Cursor cursor = db.query(TABLE_MESSAGE,
+                new String[]{COLUMN_MESSAGE_ID, COLUMN_MESSAGE_CONTENT, COLUMN_TIMESTAMP},
+                COLUMN_CONVERSATION_ID + " = ?",
+                new String[]{String.valueOf(conversationId(userId1, userId2))}, null, null,
+                COLUMN_TIMESTAMP + " DESC, " + COLUMN_MESSAGE_ID + " DESC", "1");
         if (cursor.moveToFirst()) {
-            do {
-                String typeString = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_TYPE));
-                Message.MessageType type = Message.MessageType.valueOf(typeString != null ? typeString : "TEXT");
-                String caption = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_CAPTION));
-
-                Message message = new Message(
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_CONTENT)),
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_SENDER)),
-                        cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_RECEIVER)),
-                        cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP)),
-                        type,
-                        caption
-                );
-                messageList.add(message);
-            } while (cursor.moveToNext());
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_SUMMARY_LAST_MESSAGE_ID, cursor.getLong(0));
+            values.put(COLUMN_SUMMARY_LAST_CONTENT, cursor.getString(1));
+            values.put(COLUMN_SUMMARY_LAST_TIMESTAMP, cursor.getLong(2));
+            values.put(COLUMN_SUMMARY_OWNER_ID, userId1);
+            values.put(COLUMN_SUMMARY_PEER_ID, userId2);
+            db.insertWithOnConflict(TABLE_CONVERSATION_SUMMARY, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            values.put(COLUMN_SUMMARY_OWNER_ID, userId2);
+            values.put(COLUMN_SUMMARY_PEER_ID, userId1);
+            db.insertWithOnConflict(TABLE_CONVERSATION_SUMMARY, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } else {
+            String id1 = String.valueOf(userId1);
+            String id2 = String.valueOf(userId2);
+            db.delete(TABLE_CONVERSATION_SUMMARY,
+                    "(" + COLUMN_SUMMARY_OWNER_ID + " = ? AND " + COLUMN_SUMMARY_PEER_ID + " = ?) OR ("
+                            + COLUMN_SUMMARY_OWNER_ID + " = ? AND " + COLUMN_SUMMARY_PEER_ID + " = ?)",
+                    new String[]{id1, id2, id2, id1});
+        }
+        cursor.close();
+    }
+
+    private List<long[]> findConversations(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        List<long[]> conversations = new ArrayList<>();
+        Cursor cursor = db.query(true, TABLE_MESSAGE, new String[]{COLUMN_SENDER_ID, COLUMN_RECEIVER_ID},
+                selection, selectionArgs, null, null, null, null);
+        while (cursor.moveToNext()) {
+            conversations.add(new long[]{cursor.getLong(0), cursor.getLong(1)});
         }
         cursor.close();
-        db.close();
+        return conversations;
+    }
+
+    private void refreshConversationSummaries(SQLiteDatabase db, List<long[]> conversations) {
+        for (long[] conversation : conversations) {
+            refreshConversationSummary(db, conversation[0], conversation[1]);
+        }
+    }
+
+    public List<Message> getMessages(String user1, String user2) {
+        return queryMessages(SQL_MESSAGES, String.valueOf(conversationId(user1, user2)));
+    }
+
+    /**
+     * Returns up to {@code limit} messages older than the (timestamp, message id) key, oldest first.
+     * Pass {@link Long#MAX_VALUE} for both to get the newest page of the conversation.
+     */
+    public List<Message> getMessagesBefore(String user1, String user2, long timestamp, long messageId, int limit) {
+        List<Message> messageList = queryMessages(SQL_MESSAGES_BEFORE, String.valueOf(conversationId(user1, user2)),
+                String.valueOf(timestamp), String.valueOf(timestamp), String.valueOf(messageId), String.valueOf(limit));
+        Collections.reverse(messageList);
         return messageList;
     }
 
+    /** Returns up to {@code limit} messages newer than the (timestamp, message id) key, oldest first. */
+    public List<Message> getMessagesAfter(String user1, String user2, long timestamp, long messageId, int limit) {
+        return queryMessages(SQL_MESSAGES_AFTER, String.valueOf(conversationId(user1, user2)),
+                String.valueOf(timestamp), String.valueOf(timestamp), String.valueOf(messageId), String.valueOf(limit));
+    }
+
     public Message getLastMessage(String user1, String user2) {
-        Message message = null;
-        SQLiteDatabase db = this.getReadableDatabase();
-        String[] columns = {COLUMN_MESSAGE_CONTENT, COLUMN_SENDER, COLUMN_RECEIVER, COLUMN_TIMESTAMP, COLUMN_MESSAGE_TYPE, COLUMN_MESSAGE_CAPTION};
-        Cursor cursor = db.query(TABLE_MESSAGE, columns,
-                "(" + COLUMN_SENDER + " = ? AND " + COLUMN_RECEIVER + " = ?) OR ("
-                        + COLUMN_SENDER + " = ? AND " + COLUMN_RECEIVER + " = ?)",
-                new String[]{user1, user2, user2, user1}, null, null, COLUMN_TIMESTAMP + " DESC", "1");
+        List<Message> last = queryMessages(SQL_LAST_MESSAGE, String.valueOf(conversationId(user1, user2)));
+        return last.isEmpty() ? null : last.get(0);
+    }
 
-        if (cursor.moveToFirst()) {
-            String typeString = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_TYPE));
-            Message.MessageType type = Message.MessageType.valueOf(typeString != null ? typeString : "TEXT");
-            String caption = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_CAPTION));
-
-            message = new Message(
-                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_CONTENT)),
-                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_SENDER)),
-                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_RECEIVER)),
-                    cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP)),
-                    type,
-                    caption
-            );
+    private List<Message> queryMessages(String sql, String... args) {
+        Cursor cursor = getDatabase().rawQuery(sql, args);
+        List<Message> messageList = readMessages(cursor);
+        cursor.close();
+        return messageList;
+    }
+
+    private List<Message> readMessages(Cursor cursor) {
+        return new MessageCursorMapper(cursor, this::userName).mapAll();
+    }
+
+    /**
+     * Full-text search over message text and captions in every conversation of {@code username}.
+     * Each word is matched as a prefix; results are ranked and carry a highlighted snippet.
+     */
+    public List<SearchResult> searchMessages(String username, String query, int limit) {
+        return MessageSearchIndex.search(getDatabase(), userId(username, false), query, limit);
+    }
+
+    /**
+     * Returns up to {@code limit} of the newest messages in one conversation that match the
+     * search text, oldest first, using the full-text index. Cancelling the signal aborts the
+     * query with an {@link android.os.OperationCanceledException}.
+     */
+    public List<Message> searchConversation(String user1, String user2, String query, int limit,
+                                            @Nullable CancellationSignal cancellationSignal) {
+        String ftsQuery = MessageSearchIndex.toPrefixQuery(query);
+        if (ftsQuery == null) {
+            return new ArrayList<>();
         }
+        StringBuilder columns = new StringBuilder();
+        for (String column : MESSAGE_COLUMNS) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append("m.").append(column);
+        }
+        String fts = MessageSearchIndex.TABLE_MESSAGE_FTS;
+        Cursor cursor = getDatabase().rawQuery("SELECT " + columns + " FROM " + fts
+                        + " JOIN " + TABLE_MESSAGE + " m ON m." + COLUMN_MESSAGE_ID + " = " + fts + ".docid"
+                        + " WHERE " + fts + " MATCH ? AND m." + COLUMN_CONVERSATION_ID + " = ?"
+                        + " ORDER BY m." + COLUMN_TIMESTAMP + " DESC, m." + COLUMN_MESSAGE_ID + " DESC LIMIT " + limit,
+                new String[]{ftsQuery, String.valueOf(conversationId(user1, user2))}, cancellationSignal);
+        List<Message> messageList = readMessages(cursor);
         cursor.close();
-        db.close();
-        return message;
+        Collections.reverse(messageList);
+        return messageList;
     }
 
-    public void updateMessage(long timestamp, String newContent) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    public void updateMessage(long messageId, String newContent) {
+        SQLiteDatabase db = getDatabase();
         ContentValues values = new ContentValues();
         values.put(COLUMN_MESSAGE_CONTENT, newContent);
-        db.update(TABLE_MESSAGE, values, COLUMN_TIMESTAMP + " = ?", new String[]{String.valueOf(timestamp)});
-        db.close();
+        String[] whereArgs = {String.valueOf(messageId)};
+        db.beginTransaction();
+        try {
+            db.update(TABLE_MESSAGE, values, COLUMN_MESSAGE_ID + " = ?", whereArgs);
+            // The edited message may be the one shown in the chat list.
+            refreshConversationSummaries(db, findConversations(db, COLUMN_MESSAGE_ID + " = ?", whereArgs));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    public void updateMessageCaption(long timestamp, String newCaption) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    public void updateMessageCaption(long messageId, String newCaption) {
+        SQLiteDatabase db = getDatabase();
         ContentValues values = new ContentValues();
         values.put(COLUMN_MESSAGE_CAPTION, newCaption);
-        db.update(TABLE_MESSAGE, values, COLUMN_TIMESTAMP + " = ?", new String[]{String.valueOf(timestamp)});
-        db.close();
+        db.update(TABLE_MESSAGE, values, COLUMN_MESSAGE_ID + " = ?", new String[]{String.valueOf(messageId)});
     }
 
-    public void deleteMessages(List<Long> timestamps) {
-        if (timestamps == null || timestamps.isEmpty()) {
-            return;
+    /**
+     * Deletes the messages and drops their references to media. Ids are bound in chunks of
+     * {@link #DELETE_CHUNK_SIZE} to stay under SQLite's bound-parameter limit, all inside one
+     * transaction, so either every message goes or none does.
+     *
+     * @return true if some media lost its last reference and {@link #collectUnreferencedMedia} has
+     *         something to remove
+     */
+    public boolean deleteMessages(List<Long> messageIds) {
+        if (messageIds == null || messageIds.isEmpty()) {
+            return false;
         }
-        SQLiteDatabase db = this.getWritableDatabase();
-        String[] whereArgs = new String[timestamps.size()];
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < timestamps.size(); i++) {
-            whereArgs[i] = String.valueOf(timestamps.get(i));
-            builder.append("?");
-            if (i < timestamps.size() - 1) {
-                builder.append(",");
+        SQLiteDatabase db = getDatabase();
+        boolean mediaReleased = false;
+        db.beginTransaction();
+        try {
+            Map<Long, long[]> conversations = new LinkedHashMap<>();
+            for (int from = 0; from < messageIds.size(); from += DELETE_CHUNK_SIZE) {
+                List<Long> chunk = messageIds.subList(from, Math.min(from + DELETE_CHUNK_SIZE, messageIds.size()));
+                String[] whereArgs = new String[chunk.size()];
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < chunk.size(); i++) {
+                    whereArgs[i] = String.valueOf(chunk.get(i));
+                    builder.append(i == 0 ? "?" : ",?");
+                }
+                String whereClause = COLUMN_MESSAGE_ID + " IN (" + builder + ")";
+                for (long[] conversation : findConversations(db, whereClause, whereArgs)) {
+                    conversations.put(conversationId(conversation[0], conversation[1]), conversation);
+                }
+                mediaReleased |= MediaTable.releaseForMessages(db, whereClause, whereArgs);
+                db.delete(TABLE_MESSAGE, whereClause, whereArgs);
             }
+            // Once per conversation, however many chunks touched it.
+            refreshConversationSummaries(db, new ArrayList<>(conversations.values()));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        db.delete(TABLE_MESSAGE, COLUMN_TIMESTAMP + " IN (" + builder.toString() + ")", whereArgs);
-        db.close();
+        return mediaReleased;
     }
-}
 
+    /** Deletes media files no message points at any more, returning how many were removed. */
+    public int collectUnreferencedMedia() {
+        return MediaTable.collectUnreferenced(getDatabase());
+    }
+}
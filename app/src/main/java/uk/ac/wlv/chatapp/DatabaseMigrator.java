@@ -0,0 +1,99 @@
+package uk.ac.wlv.chatapp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Applies versioned schema changes in place instead of dropping and recreating tables.
+ *
+ * SQLiteOpenHelper runs onUpgrade inside a single transaction and only bumps the stored
+ * version once it commits. If an upgrade is interrupted, the whole run rolls back and the next
+ * open resumes from the last committed version. Every step must therefore be safe to run again.
+ */
+class DatabaseMigrator {
+
+    private static final String TAG = "DatabaseMigrator";
+
+    /** A single schema change that brings the database up to {@link #version}. */
+    abstract static class Migration {
+        final int version;
+        final String description;
+
+        Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    private final int minSupportedVersion;
+    private final List<Migration> migrations = new ArrayList<>();
+
+    /**
+     * @param minSupportedVersion the oldest schema the steps know how to upgrade; anything older
+     *                            has to be recreated by the caller.
+     */
+    DatabaseMigrator(int minSupportedVersion) {
+        this.minSupportedVersion = minSupportedVersion;
+    }
+
+    DatabaseMigrator add(Migration migration) {
+        migrations.add(migration);
+        Collections.sort(migrations, (m1, m2) -> Integer.compare(m1.version, m2.version));
+        return this;
+    }
+
+    boolean canMigrate(int oldVersion) {
+        return oldVersion >= minSupportedVersion;
+    }
+
+    void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        long totalStart = SystemClock.elapsedRealtime();
+        for (Migration migration : migrations) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+            long start = SystemClock.elapsedRealtime();
+            migration.migrate(db);
+            Log.i(TAG, "Migrated to v" + migration.version + " (" + migration.description + ") in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        Log.i(TAG, "Upgrade v" + oldVersion + " -> v" + newVersion + " took "
+                + (SystemClock.elapsedRealtime() - totalStart) + "ms");
+    }
+
+    static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        return columnType(db, table, column) != null;
+    }
+
+    /** Returns the declared type of {@code column}, or null if the table has no such column. */
+    @Nullable
+    static String columnType(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            int typeIndex = cursor.getColumnIndexOrThrow("type");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return cursor.getString(typeIndex);
+                }
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String type) {
+        if (!hasColumn(db, table, column)) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+}
@@ -1,23 +1,53 @@
 package uk.ac.wlv.chatapp;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.GridView;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class GalleryActivity extends AppCompatActivity {
 
-    private GridView galleryGridView;
+    private static final String TAG = "GalleryActivity";
+    // Enough rows to fill the first screens of the grid in one round trip to MediaStore.
+    private static final int PAGE_SIZE = 120;
+    // How many cells from the end of the loaded rows the grid may get before the next page is queried.
+    private static final int PAGE_PREFETCH_DISTANCE = 30;
+
+    private static final int SPAN_COUNT = 3;
+    // Rows ahead of the scroll direction whose thumbnails are decoded before they come into view.
+    private static final int PREFETCH_ROWS = 2;
+
+    private RecyclerView galleryRecyclerView;
     private ArrayList<String> imagePaths;
     private GalleryImageAdapter adapter;
+    private ImageLoader imageLoader;
+
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "gallery-query"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CancellationSignal cancellationSignal = new CancellationSignal();
+    // _ID of the last row loaded; pages walk down from the newest row.
+    private long lastLoadedId = Long.MAX_VALUE;
+    private boolean hasMore = true;
+    private boolean loading;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -31,24 +61,58 @@ public class GalleryActivity extends AppCompatActivity {
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         // --- End Toolbar Setup ---
 
-        galleryGridView = findViewById(R.id.galleryGridView);
+        galleryRecyclerView = findViewById(R.id.galleryRecyclerView);
         imagePaths = new ArrayList<>();
 
-        loadImages();
+        adapter = new GalleryImageAdapter(this, imagePaths, selectedImagePath -> {
+            Intent resultIntent = new Intent();
+            resultIntent.putExtra("selectedImage", selectedImagePath);
+            setResult(RESULT_OK, resultIntent);
+            finish();
+        });
+        GridLayoutManager layoutManager = new GridLayoutManager(this, SPAN_COUNT);
+        galleryRecyclerView.setLayoutManager(layoutManager);
+        galleryRecyclerView.setHasFixedSize(true);
+        galleryRecyclerView.setAdapter(adapter);
 
-        adapter = new GalleryImageAdapter(this, imagePaths);
-        galleryGridView.setAdapter(adapter);
+        imageLoader = ImageLoader.getInstance(this);
+        galleryRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                // A fling passes rows faster than they can be decoded, so only decode once it slows to a stop.
+                if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+                    imageLoader.pause();
+                } else {
+                    imageLoader.resume();
+                }
+            }
 
-        galleryGridView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String selectedImagePath = imagePaths.get(position);
-                Intent resultIntent = new Intent();
-                resultIntent.putExtra("selectedImage", selectedImagePath);
-                setResult(RESULT_OK, resultIntent);
-                finish();
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int first = layoutManager.findFirstVisibleItemPosition();
+                int last = layoutManager.findLastVisibleItemPosition();
+                if (first == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                if (last >= imagePaths.size() - 1 - PAGE_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+                if (dy != 0) {
+                    prefetchAhead(dy > 0 ? last + 1 : first - 1, dy > 0 ? 1 : -1);
+                }
             }
         });
+
+        loadNextPage();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The loader is shared with the chat screen, so never leave it paused.
+        imageLoader.resume();
+        cancellationSignal.cancel();
+        queryExecutor.shutdown();
     }
 
     /**
@@ -60,18 +124,80 @@ public class GalleryActivity extends AppCompatActivity {
         return true;
     }
 
-    private void loadImages() {
-        // Load images from the device's external storage
+    // Decodes the next rows in the scroll direction at the size the visible cells asked for.
+    private void prefetchAhead(int start, int step) {
+        View cell = galleryRecyclerView.getChildAt(0);
+        if (cell == null || cell.getWidth() == 0) {
+            return;
+        }
+        for (int i = 0, position = start; i < PREFETCH_ROWS * SPAN_COUNT; i++, position += step) {
+            if (position < 0 || position >= imagePaths.size()) {
+                break;
+            }
+            imageLoader.prefetch(imagePaths.get(position), cell.getWidth(), cell.getHeight());
+        }
+    }
+
+    private void loadNextPage() {
+        if (loading || !hasMore) {
+            return;
+        }
+        loading = true;
+        final long afterId = lastLoadedId;
+        queryExecutor.execute(() -> {
+            try {
+                List<Long> ids = queryPage(afterId);
+                mainHandler.post(() -> onPageLoaded(ids));
+            } catch (OperationCanceledException e) {
+                // The activity is finishing.
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to query images", e);
+                mainHandler.post(() -> loading = false);
+            }
+        });
+    }
+
+    private void onPageLoaded(List<Long> ids) {
+        if (isDestroyed()) {
+            return;
+        }
+        loading = false;
+        hasMore = ids.size() == PAGE_SIZE;
+        if (ids.isEmpty()) {
+            return;
+        }
+        lastLoadedId = ids.get(ids.size() - 1);
+        int start = imagePaths.size();
+        for (long id : ids) {
+            imagePaths.add(ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id).toString());
+        }
+        adapter.notifyItemRangeInserted(start, ids.size());
+    }
+
+    /**
+     * Reads the next page of image ids below {@code afterId}, newest first. Only _ID is read;
+     * the images are opened through their content URIs, since the DATA path column is deprecated
+     * and unreadable under scoped storage.
+     */
+    private List<Long> queryPage(long afterId) {
         Uri uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {MediaStore.MediaColumns.DATA};
-        Cursor cursor = getContentResolver().query(uri, projection, null, null, MediaStore.Images.Media.DATE_TAKEN + " DESC");
+        String[] projection = {MediaStore.Images.Media._ID};
+        Bundle queryArgs = new Bundle();
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, MediaStore.Images.Media._ID + " < ?");
+        queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, new String[]{String.valueOf(afterId)});
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, MediaStore.Images.Media._ID + " DESC");
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
 
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                int columnIndex = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
-                imagePaths.add(cursor.getString(columnIndex));
+        List<Long> ids = new ArrayList<>(PAGE_SIZE);
+        try (Cursor cursor = getContentResolver().query(uri, projection, queryArgs, cancellationSignal)) {
+            if (cursor != null) {
+                int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+                // Older providers ignore QUERY_ARG_LIMIT, so stop reading at a page regardless.
+                while (ids.size() < PAGE_SIZE && cursor.moveToNext()) {
+                    ids.add(cursor.getLong(idColumn));
+                }
             }
-            cursor.close();
         }
+        return ids;
     }
-}
\ No newline at end of file
+}
@@ -1,62 +1,66 @@
 package uk.ac.wlv.chatapp;
 
 import android.content.Context;
-import android.net.Uri;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
-import android.widget.GridView;
 import android.widget.ImageView;
-import java.io.File;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
 import java.util.ArrayList;
 
-public class GalleryImageAdapter extends BaseAdapter {
+public class GalleryImageAdapter extends RecyclerView.Adapter<GalleryImageAdapter.ImageViewHolder> {
+
+    public interface OnImageClickListener {
+        void onImageClick(String imagePath);
+    }
 
-    private final Context context;
     private final ArrayList<String> imagePaths;
+    private final ImageLoader imageLoader;
+    private final OnImageClickListener clickListener;
 
-    public GalleryImageAdapter(Context context, ArrayList<String> imagePaths) {
-        this.context = context;
+    public GalleryImageAdapter(Context context, ArrayList<String> imagePaths, OnImageClickListener clickListener) {
         this.imagePaths = imagePaths;
+        this.imageLoader = ImageLoader.getInstance(context);
+        this.clickListener = clickListener;
     }
 
+    @NonNull
     @Override
-    public int getCount() {
-        return imagePaths.size();
+    public ImageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_gallery_image, parent, false);
+        ImageViewHolder holder = new ImageViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                clickListener.onImageClick(imagePaths.get(position));
+            }
+        });
+        return holder;
     }
 
     @Override
-    public Object getItem(int position) {
-        return imagePaths.get(position);
+    public void onBindViewHolder(@NonNull ImageViewHolder holder, int position) {
+        imageLoader.load(imagePaths.get(position), holder.imageView);
     }
 
     @Override
-    public long getItemId(int position) {
-        return position;
+    public void onViewRecycled(@NonNull ImageViewHolder holder) {
+        // Rows scrolled away stop decoding and hand their bitmap back to the cache.
+        imageLoader.cancel(holder.imageView);
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ImageView imageView;
-        if (convertView == null) {
-            imageView = new ImageView(context);
-            // Increased the size of the ImageView for larger photos
-            imageView.setLayoutParams(new GridView.LayoutParams(350, 350));
-            imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
-            imageView.setPadding(8, 8, 8, 8);
-        } else {
-            imageView = (ImageView) convertView;
-        }
+    public int getItemCount() {
+        return imagePaths.size();
+    }
 
-        String path = imagePaths.get(position);
+    public static class ImageViewHolder extends RecyclerView.ViewHolder {
+        final ImageView imageView;
 
-        if (path.startsWith("drawable://")) {
-            int drawableId = Integer.parseInt(path.substring("drawable://".length()));
-            imageView.setImageResource(drawableId);
-        } else {
-            imageView.setImageURI(Uri.fromFile(new File(path)));
+        ImageViewHolder(View itemView) {
+            super(itemView);
+            imageView = itemView.findViewById(R.id.imageViewGallery);
         }
-
-        return imageView;
     }
 }
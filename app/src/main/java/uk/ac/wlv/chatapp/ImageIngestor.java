@@ -0,0 +1,297 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns a picked or captured image into the app-owned copy that a message points at.
+ *
+ * The image is rotated upright from its EXIF orientation, scaled down to fit
+ * {@link #maxDimension}, and re-encoded as JPEG. Re-encoding drops all metadata, including
+ * location. The copy goes to filesDir/media and is named by the SHA-256 of the source bytes, so
+ * sending the same picture twice stores it once. Writes go through a temporary file and a
+ * rename, so a crash never leaves a half-written copy under its final name.
+ */
+public class ImageIngestor {
+
+    private static final String TAG = "ImageIngestor";
+
+    static final int DEFAULT_MAX_DIMENSION = 1600;
+    static final int DEFAULT_JPEG_QUALITY = 85;
+    static final String MEDIA_DIRECTORY = "media";
+    // Longer side of the blurred preview stored with each image message.
+    static final int PLACEHOLDER_DIMENSION = 16;
+    private static final int PLACEHOLDER_QUALITY = 60;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The stored copy, the source hash it is named by, and its size after rotation and scaling. */
+    public static final class Result {
+        public final String uri;
+        public final String hash;
+        public final long byteSize;
+        public final int width;
+        public final int height;
+        // A tiny JPEG of the image to draw while the real one decodes.
+        public final byte[] placeholder;
+        // Where the copy was made from, so it can be written again if collected before it is sent.
+        final String source;
+        final boolean deleteSource;
+
+        Result(String uri, String hash, long byteSize, int width, int height, byte[] placeholder,
+               String source, boolean deleteSource) {
+            this.uri = uri;
+            this.hash = hash;
+            this.byteSize = byteSize;
+            this.width = width;
+            this.height = height;
+            this.placeholder = placeholder;
+            this.source = source;
+            this.deleteSource = deleteSource;
+        }
+    }
+
+    private static ImageIngestor instance;
+
+    private final Context context;
+    private final int maxDimension;
+    private final int jpegQuality;
+    private final ExecutorService ingestExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "image-ingest"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized ImageIngestor getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageIngestor(context.getApplicationContext(), DEFAULT_MAX_DIMENSION, DEFAULT_JPEG_QUALITY);
+        }
+        return instance;
+    }
+
+    ImageIngestor(Context context, int maxDimension, int jpegQuality) {
+        this.context = context;
+        this.maxDimension = maxDimension;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Ingests {@code source} in the background and reports the stored copy on the main thread.
+     * If {@code deleteSource} is set, the source file is removed by {@link #discardSource} once
+     * the message is saved, since until then it may be needed to {@link #restore} the copy; use
+     * it for camera captures that only existed to be sent.
+     */
+    public Future<?> ingest(String source, boolean deleteSource, ChatRepository.Callback<Result> callback) {
+        return ingestExecutor.submit(() -> {
+            try {
+                Result result = ingest(source, deleteSource);
+                mainHandler.post(() -> callback.onResult(result));
+            } catch (IOException | RuntimeException e) {
+                mainHandler.post(() -> callback.onError(e));
+            }
+        });
+    }
+
+    Result ingest(String source) throws IOException {
+        return ingest(source, false);
+    }
+
+    /**
+     * Returns {@code media} if its copy is still stored, or writes the copy again from the source
+     * it was made from. A copy of an image sent before is shared, and deleting the last message
+     * that used it lets media collection remove it between ingesting and sending. Call on the
+     * thread that collects media, so the copy cannot go again before a message references it.
+     *
+     * @throws IOException if the source is gone or no longer hashes to the same copy
+     */
+    Result restore(Result media) throws IOException {
+        String path = Uri.parse(media.uri).getPath();
+        if (path != null && new File(path).isFile()) {
+            return media;
+        }
+        Log.w(TAG, "Writing collected copy " + media.uri + " again from " + media.source);
+        Result restored = ingest(media.source, media.deleteSource);
+        if (!restored.hash.equals(media.hash)) {
+            throw new IOException(media.source + " has changed since it was ingested");
+        }
+        return restored;
+    }
+
+    /** Removes the source of {@code media} if it was ingested with {@code deleteSource} set. */
+    void discardSource(Result media) {
+        if (media.deleteSource) {
+            deleteFile(media.source);
+        }
+    }
+
+    private Result ingest(String source, boolean deleteSource) throws IOException {
+        ImageLoader loader = ImageLoader.getInstance(context);
+        File directory = new File(context.getFilesDir(), MEDIA_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        String hash;
+        try (InputStream in = loader.openStream(source)) {
+            hash = sha256(in);
+        }
+        File target = new File(directory, hash + ".jpg");
+        if (target.isFile()) {
+            // Already ingested; the name proves the contents match.
+            String uri = Uri.fromFile(target).toString();
+            BitmapFactory.Options options = decodeBounds(loader, uri);
+            int width = options.outWidth;
+            int height = options.outHeight;
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSizeFor(width, height, PLACEHOLDER_DIMENSION);
+            Bitmap small;
+            try (InputStream in = loader.openStream(uri)) {
+                small = BitmapFactory.decodeStream(in, null, options);
+            }
+            if (small == null) {
+                throw new IOException("Could not decode " + target);
+            }
+            byte[] placeholder = encodePlaceholder(small);
+            small.recycle();
+            return new Result(uri, hash, target.length(), width, height, placeholder, source, deleteSource);
+        }
+
+        int orientation = ImageOrientation.read(loader, source);
+
+        BitmapFactory.Options options = decodeBounds(loader, source);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + source);
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, maxDimension);
+        Bitmap decoded;
+        try (InputStream in = loader.openStream(source)) {
+            decoded = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (decoded == null) {
+            throw new IOException("Could not decode " + source);
+        }
+
+        Bitmap upright = scaleAndRotate(decoded, orientation);
+        int width = upright.getWidth();
+        int height = upright.getHeight();
+        byte[] placeholder = encodePlaceholder(upright);
+        // Uniquely named, since restore() on the writer thread can ingest the same source as this executor.
+        File temp;
+        try {
+            temp = File.createTempFile(hash, TEMP_SUFFIX, directory);
+        } catch (IOException e) {
+            upright.recycle();
+            throw e;
+        }
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            if (!upright.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out)) {
+                throw new IOException("Could not encode " + source);
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            upright.recycle();
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp + " to " + target);
+        }
+        return new Result(Uri.fromFile(target).toString(), hash, target.length(), width, height, placeholder,
+                source, deleteSource);
+    }
+
+    /** Scales {@code bitmap} down to a few pixels and encodes it; a few hundred bytes at most. */
+    static byte[] encodePlaceholder(Bitmap bitmap) {
+        float scale = (float) PLACEHOLDER_DIMENSION / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        small.compress(Bitmap.CompressFormat.JPEG, PLACEHOLDER_QUALITY, out);
+        if (small != bitmap) {
+            small.recycle();
+        }
+        return out.toByteArray();
+    }
+
+    private static BitmapFactory.Options decodeBounds(ImageLoader loader, String source) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = loader.openStream(source)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        return options;
+    }
+
+    /** Largest power-of-two reduction that keeps the longer side at or above {@code maxDimension}. */
+    static int sampleSizeFor(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // Scales the longer side down to maxDimension and applies the EXIF orientation in a single pass.
+    private Bitmap scaleAndRotate(Bitmap bitmap, int orientation) {
+        float scale = Math.min(1f, (float) maxDimension / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        ImageOrientation.postOrient(matrix, orientation);
+        if (matrix.isIdentity()) {
+            return bitmap;
+        }
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    private static String sha256(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (DigestInputStream digestStream = new DigestInputStream(in, digest)) {
+            while (digestStream.read(buffer) != -1) {
+                // Reading is all that is needed; the digest sees every byte.
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void deleteFile(@Nullable String source) {
+        if (source == null) {
+            return;
+        }
+        Uri uri = Uri.parse(source);
+        File file = "file".equals(uri.getScheme()) ? new File(uri.getPath()) : new File(source);
+        file.delete();
+    }
+}
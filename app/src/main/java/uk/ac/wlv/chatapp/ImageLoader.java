@@ -0,0 +1,539 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Size;
+import android.widget.ImageView;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads images into ImageViews off the main thread. Each image is downsampled to the size of the
+ * view that shows it. Decoded bitmaps are kept in a memory cache bounded by their byte size.
+ *
+ * Bitmaps evicted from the cache go to a small pool once no view shows them. Later decodes reuse
+ * their memory through {@link BitmapFactory.Options#inBitmap}. A per-bitmap display count stops a
+ * bitmap that is still on screen from being reused. Below the memory cache sits a
+ * {@link ThumbnailDiskCache} of the downsampled images, which survives restarts.
+ *
+ * Sources can be "drawable://" resource ids, content:// or file:// URIs, or plain file paths.
+ * MediaStore images use the platform's thumbnails where available. Call every public method on
+ * the main thread only.
+ */
+public class ImageLoader {
+
+    private static final String TAG = "ImageLoader";
+    static final String DRAWABLE_SCHEME = "drawable://";
+    private static final int DECODE_THREADS = 2;
+    private static final String THUMBNAIL_DIRECTORY = "thumbs";
+    private static final long MAX_THUMBNAIL_BYTES = 50L * 1024 * 1024;
+
+    private static ImageLoader instance;
+
+    private final Resources resources;
+    private final ContentResolver contentResolver;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ThumbnailDiskCache diskCache;
+    private final ExecutorService decodeExecutor;
+    // Images loaded into the memory cache so far, however they were read; for benchmarks.
+    private final AtomicInteger decodeCount = new AtomicInteger();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // All guarded by "this"; decode threads and the main thread both touch them.
+    private final Map<Bitmap, Integer> displayCounts = new IdentityHashMap<>();
+    private final Map<Bitmap, Boolean> evictedWhileShown = new IdentityHashMap<>();
+    private final List<Bitmap> reusePool = new ArrayList<>();
+    private final int maxReusePoolBytes;
+    private int reusePoolBytes;
+
+    // Main thread only.
+    private boolean paused;
+    private final List<Request> deferredRequests = new ArrayList<>();
+    private final Set<String> prefetching = new HashSet<>();
+
+    /** What an ImageView has asked for, stored in its tag so a recycled view can drop stale work. */
+    private static final class Request {
+        final String key;
+        Future<?> future;
+        // Set while decoding is paused; submitted on resume().
+        Runnable deferred;
+        Bitmap shown;
+
+        Request(String key) {
+            this.key = key;
+        }
+    }
+
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ImageLoader(Context context) {
+        this.resources = context.getResources();
+        this.contentResolver = context.getContentResolver();
+        // An eighth of the heap for decoded images, and a quarter of that again for the reuse pool.
+        int cacheBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        this.maxReusePoolBytes = cacheBytes / 4;
+        this.memoryCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                onRemovedFromCache(oldValue);
+            }
+        };
+        this.diskCache = new ThumbnailDiskCache(new File(context.getCacheDir(), THUMBNAIL_DIRECTORY), MAX_THUMBNAIL_BYTES);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+                r -> new Thread(r, "image-decode-" + threadCount.incrementAndGet()));
+    }
+
+    /** Shows {@code source} in {@code target}, decoded no larger than the view needs. */
+    public void load(String source, ImageView target) {
+        load(source, target, null);
+    }
+
+    /**
+     * Like {@link #load(String, ImageView)}, but if the image has to be decoded first, shows the
+     * encoded {@code placeholder} stretched over the view until it is ready.
+     */
+    public void load(String source, ImageView target, @Nullable byte[] placeholder) {
+        int width = targetDimension(target.getWidth(), target.getLayoutParams() != null ? target.getLayoutParams().width : 0,
+                resources.getDisplayMetrics().widthPixels);
+        int height = targetDimension(target.getHeight(), target.getLayoutParams() != null ? target.getLayoutParams().height : 0,
+                resources.getDisplayMetrics().heightPixels);
+        String key = cacheKey(source, width, height);
+
+        Request current = (Request) target.getTag(R.id.image_loader_request);
+        if (current != null && current.key.equals(key)
+                && (current.shown != null || current.future != null || current.deferred != null)) {
+            return; // Already shown or on its way.
+        }
+        cancel(target);
+
+        Request request = new Request(key);
+        target.setTag(R.id.image_loader_request, request);
+        Bitmap cached = acquireCached(key);
+        if (cached != null) {
+            show(target, request, cached);
+            return;
+        }
+        target.setImageDrawable(placeholderDrawable(placeholder));
+        Runnable submit = () -> request.future = decodeExecutor.submit(() -> {
+            Bitmap bitmap = decodeAndAcquire(source, key, width, height);
+            mainHandler.post(() -> {
+                if (target.getTag(R.id.image_loader_request) != request) {
+                    release(bitmap); // The view moved on to another image while this one decoded.
+                    return;
+                }
+                request.future = null;
+                if (bitmap != null) {
+                    show(target, request, bitmap);
+                }
+            });
+        });
+        if (paused) {
+            request.deferred = submit;
+            deferredRequests.add(request);
+        } else {
+            submit.run();
+        }
+    }
+
+    /**
+     * Decodes {@code source} into the memory cache ahead of a view asking for it, at the size
+     * that view will ask for. Does nothing while paused or when the image is already cached.
+     */
+    public void prefetch(String source, int width, int height) {
+        String key = cacheKey(source, width, height);
+        if (paused || prefetching.contains(key) || memoryCache.get(key) != null) {
+            return;
+        }
+        prefetching.add(key);
+        decodeExecutor.execute(() -> {
+            Bitmap bitmap = decodeAndAcquire(source, key, width, height);
+            mainHandler.post(() -> {
+                prefetching.remove(key);
+                release(bitmap); // Only the cache holds it until a view shows it.
+            });
+        });
+    }
+
+    /**
+     * Holds back new decodes, e.g. while a list flings past rows faster than they can be decoded.
+     * Images already cached still show at once.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /** Starts the decodes held back since {@link #pause()} for views still waiting on them. */
+    public void resume() {
+        if (!paused) {
+            return;
+        }
+        paused = false;
+        List<Request> requests = new ArrayList<>(deferredRequests);
+        deferredRequests.clear();
+        for (Request request : requests) {
+            Runnable submit = request.deferred;
+            request.deferred = null;
+            if (submit != null) {
+                submit.run();
+            }
+        }
+    }
+
+    /**
+     * How many images have been loaded into the memory cache, from the source, the disk cache or
+     * a platform thumbnail. Safe to call from any thread.
+     */
+    int decodeCount() {
+        return decodeCount.get();
+    }
+
+    // A few hundred bytes decode in microseconds, and bilinear upscaling of so few pixels looks like a blur.
+    @Nullable
+    private Drawable placeholderDrawable(@Nullable byte[] placeholder) {
+        if (placeholder == null) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(placeholder, 0, placeholder.length);
+        if (bitmap == null) {
+            return null;
+        }
+        BitmapDrawable drawable = new BitmapDrawable(resources, bitmap);
+        drawable.setFilterBitmap(true);
+        return drawable;
+    }
+
+    private static String cacheKey(String source, int width, int height) {
+        return source + '@' + width + 'x' + height;
+    }
+
+    /** Stops any pending load for {@code target} and lets go of the bitmap it shows. */
+    public void cancel(ImageView target) {
+        Request request = (Request) target.getTag(R.id.image_loader_request);
+        if (request == null) {
+            return;
+        }
+        target.setTag(R.id.image_loader_request, null);
+        if (request.deferred != null) {
+            request.deferred = null;
+            deferredRequests.remove(request);
+        }
+        if (request.future != null) {
+            request.future.cancel(false);
+        }
+        if (request.shown != null) {
+            target.setImageDrawable(null);
+            release(request.shown);
+        }
+    }
+
+    private void show(ImageView target, Request request, Bitmap bitmap) {
+        request.shown = bitmap;
+        target.setImageBitmap(bitmap);
+    }
+
+    // An exact layout size wins over the measured one, which may be stale for a view just resized
+    // for a new row. Wrap, match_parent and unmeasured views fall back to the screen size.
+    private static int targetDimension(int measured, int layoutParam, int screen) {
+        if (layoutParam > 0) {
+            return layoutParam;
+        }
+        if (measured > 0) {
+            return measured;
+        }
+        return screen;
+    }
+
+    // --- Decoding ---
+
+    private interface Decoder {
+        @Nullable
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    @Nullable
+    private Bitmap decodeAndAcquire(String source, String key, int width, int height) {
+        try {
+            Bitmap bitmap = null;
+            String diskKey = null;
+            boolean fromCache = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && isMediaStoreUri(source)) {
+                // MediaStore keeps its own thumbnails, so there is no need for a second copy on disk.
+                bitmap = loadPlatformThumbnail(source, width, height);
+                fromCache = bitmap != null;
+            }
+            if (bitmap == null) {
+                String sourceVersion = sourceVersion(source);
+                diskKey = sourceVersion != null ? ThumbnailDiskCache.key(source, sourceVersion, width, height) : null;
+                bitmap = diskKey != null ? decodeFromDisk(diskKey, width, height) : null;
+                fromCache = bitmap != null;
+            }
+            if (bitmap == null) {
+                // Turned upright here, so both caches hold the image as it is shown.
+                bitmap = decodeSampled(decoderFor(source), width, height, ImageOrientation.read(this, source));
+            }
+            if (bitmap == null) {
+                Log.w(TAG, "Could not decode " + source);
+                return null;
+            }
+            decodeCount.incrementAndGet();
+            synchronized (this) {
+                // Counted as shown before it is cached, so an eviction before it reaches the view cannot recycle it.
+                acquire(bitmap);
+                memoryCache.put(key, bitmap);
+            }
+            if (diskKey != null && !fromCache) {
+                diskCache.put(diskKey, bitmap);
+            }
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to load " + source, e);
+            return null;
+        }
+    }
+
+    private static boolean isMediaStoreUri(String source) {
+        return source.startsWith("content://" + MediaStore.AUTHORITY + "/");
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    @Nullable
+    private Bitmap loadPlatformThumbnail(String source, int width, int height) {
+        try {
+            return contentResolver.loadThumbnail(Uri.parse(source), new Size(width, height), null);
+        } catch (IOException e) {
+            // Not every image has a platform thumbnail; fall back to decoding it ourselves.
+            Log.w(TAG, "No platform thumbnail for " + source, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private Bitmap decodeFromDisk(String diskKey, int width, int height) {
+        File file = diskCache.get(diskKey);
+        if (file == null) {
+            return null;
+        }
+        try {
+            // Thumbnails were written upright.
+            Bitmap bitmap = decodeSampled(decoderFor(file.getPath()), width, height, ExifInterface.ORIENTATION_NORMAL);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unreadable thumbnail " + diskKey, e);
+        }
+        diskCache.remove(diskKey);
+        return null;
+    }
+
+    /**
+     * Identifies the current contents of a source by its size and modification time, or returns
+     * null if they cannot be read. Bundled drawables return null too, since decoding them is
+     * already cheap enough not to need a disk copy.
+     */
+    @Nullable
+    private String sourceVersion(String source) {
+        if (source.startsWith(DRAWABLE_SCHEME)) {
+            return null;
+        }
+        Uri uri = Uri.parse(source);
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            String[] projection = {OpenableColumns.SIZE, MediaStore.MediaColumns.DATE_MODIFIED};
+            try (Cursor cursor = contentResolver.query(uri, projection, null, null, null)) {
+                if (cursor == null || !cursor.moveToFirst() || cursor.isNull(0)) {
+                    return null;
+                }
+                int modifiedIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                long modified = modifiedIndex >= 0 ? cursor.getLong(modifiedIndex) : 0;
+                return cursor.getLong(0) + ":" + modified;
+            } catch (RuntimeException e) {
+                // Some providers reject columns they do not know.
+                return null;
+            }
+        }
+        File file = ContentResolver.SCHEME_FILE.equals(uri.getScheme()) ? new File(uri.getPath()) : new File(source);
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.length() + ":" + file.lastModified();
+    }
+
+    private Decoder decoderFor(String source) {
+        if (source.startsWith(DRAWABLE_SCHEME)) {
+            int drawableId = Integer.parseInt(source.substring(DRAWABLE_SCHEME.length()));
+            return options -> {
+                // Density scaling is skipped; the sample size already fits the image to the view.
+                options.inScaled = false;
+                return BitmapFactory.decodeResource(resources, drawableId, options);
+            };
+        }
+        return options -> {
+            try (InputStream in = openStream(source)) {
+                return BitmapFactory.decodeStream(in, null, options);
+            }
+        };
+    }
+
+    /** Opens the encoded bytes of any source this loader accepts. */
+    InputStream openStream(String source) throws IOException {
+        if (source.startsWith(DRAWABLE_SCHEME)) {
+            try {
+                return resources.openRawResource(Integer.parseInt(source.substring(DRAWABLE_SCHEME.length())));
+            } catch (Resources.NotFoundException | NumberFormatException e) {
+                throw new IOException("No drawable for " + source, e);
+            }
+        }
+        if (source.contains("://")) {
+            InputStream in = contentResolver.openInputStream(Uri.parse(source));
+            if (in == null) {
+                throw new IOException("No stream for " + source);
+            }
+            return in;
+        }
+        return new FileInputStream(source);
+    }
+
+    /**
+     * Reads only the image bounds first, then decodes at the largest power-of-two reduction
+     * that still covers the requested size once turned upright from {@code orientation}, and
+     * turns it.
+     */
+    @Nullable
+    private Bitmap decodeSampled(Decoder decoder, int width, int height, int orientation) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decoder.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        boolean swapped = ImageOrientation.swapsAxes(orientation);
+        options.inSampleSize = calculateInSampleSize(swapped ? options.outHeight : options.outWidth,
+                swapped ? options.outWidth : options.outHeight, width, height);
+        options.inMutable = true;
+        int sampledBytes = (options.outWidth / options.inSampleSize) * (options.outHeight / options.inSampleSize) * 4;
+        options.inBitmap = takeReusable(sampledBytes);
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all; decode into fresh memory instead.
+            options.inBitmap = null;
+            bitmap = decoder.decode(options);
+        }
+        return bitmap != null ? ImageOrientation.orient(bitmap, orientation) : null;
+    }
+
+    static int calculateInSampleSize(int sourceWidth, int sourceHeight, int width, int height) {
+        int inSampleSize = 1;
+        while (sourceWidth / (inSampleSize * 2) >= width && sourceHeight / (inSampleSize * 2) >= height) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    // --- Cache and reuse bookkeeping ---
+
+    @Nullable
+    private synchronized Bitmap acquireCached(String key) {
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            acquire(bitmap);
+        }
+        return bitmap;
+    }
+
+    private synchronized void acquire(Bitmap bitmap) {
+        Integer count = displayCounts.get(bitmap);
+        displayCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private synchronized void release(@Nullable Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        Integer count = displayCounts.get(bitmap);
+        if (count == null || count <= 1) {
+            displayCounts.remove(bitmap);
+            if (evictedWhileShown.remove(bitmap) != null) {
+                offerReusable(bitmap);
+            }
+        } else {
+            displayCounts.put(bitmap, count - 1);
+        }
+    }
+
+    private synchronized void onRemovedFromCache(Bitmap bitmap) {
+        if (displayCounts.containsKey(bitmap)) {
+            evictedWhileShown.put(bitmap, Boolean.TRUE);
+        } else {
+            offerReusable(bitmap);
+        }
+    }
+
+    private synchronized void offerReusable(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        reusePool.add(bitmap);
+        reusePoolBytes += bitmap.getAllocationByteCount();
+        while (reusePoolBytes > maxReusePoolBytes && !reusePool.isEmpty()) {
+            reusePoolBytes -= reusePool.remove(0).getAllocationByteCount();
+        }
+    }
+
+    @Nullable
+    private synchronized Bitmap takeReusable(int byteCount) {
+        Iterator<Bitmap> iterator = reusePool.iterator();
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next();
+            if (candidate.getAllocationByteCount() >= byteCount) {
+                iterator.remove();
+                reusePoolBytes -= candidate.getAllocationByteCount();
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
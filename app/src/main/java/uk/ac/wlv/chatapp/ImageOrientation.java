@@ -0,0 +1,118 @@
+package uk.ac.wlv.chatapp;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The EXIF orientation of an image, and how to turn what a decoder returns upright. Decoders hand
+ * back pixels as stored, and cameras usually store a portrait photo sideways with a tag saying how
+ * to turn it. Orientations are the {@link ExifInterface} ORIENTATION_ constants.
+ */
+final class ImageOrientation {
+
+    private ImageOrientation() {
+    }
+
+    /** Reads the orientation of {@code source}; images without EXIF, such as PNGs, are upright. */
+    static int read(ImageLoader loader, String source) {
+        try (InputStream in = loader.openStream(source)) {
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /** Whether the upright image is the stored one turned on its side, swapping width and height. */
+    static boolean swapsAxes(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Appends the turn that makes the stored image upright to {@code matrix}. */
+    static void postOrient(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns {@code bitmap} turned upright, recycling the original if a copy was made. A stored
+     * image that is already upright is returned as is.
+     */
+    static Bitmap orient(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        postOrient(matrix, orientation);
+        if (matrix.isIdentity()) {
+            return bitmap;
+        }
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (oriented != bitmap) {
+            bitmap.recycle();
+        }
+        return oriented;
+    }
+
+    /**
+     * Maps a rectangle of the upright image to the rectangle of the stored image that holds the
+     * same pixels, as {left, top, right, bottom}. {@code storedWidth} and {@code storedHeight} are
+     * the size of the image as stored, before it is turned.
+     */
+    static int[] toStored(int orientation, int storedWidth, int storedHeight,
+                          int left, int top, int right, int bottom) {
+        int w = storedWidth;
+        int h = storedHeight;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                return new int[]{w - right, top, w - left, bottom};
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return new int[]{w - right, h - bottom, w - left, h - top};
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return new int[]{left, h - bottom, right, h - top};
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return new int[]{top, left, bottom, right};
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return new int[]{top, h - right, bottom, h - left};
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return new int[]{w - bottom, h - right, w - top, h - left};
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return new int[]{w - bottom, left, w - top, right};
+            default:
+                return new int[]{left, top, right, bottom};
+        }
+    }
+}
@@ -1,12 +1,8 @@
 package uk.ac.wlv.chatapp;
 
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
-import android.util.Log;
 import android.widget.EditText;
-import android.widget.ImageView;
-import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
@@ -14,7 +10,7 @@ import java.util.Objects;
 
 public class ImagePreviewActivity extends AppCompatActivity {
 
-    private ImageView imageViewPreview;
+    private TiledImageView imageViewPreview;
     private EditText editTextCaption;
     private FloatingActionButton buttonSendWithCaption;
     private String imageUriString;
@@ -35,19 +31,8 @@ public class ImagePreviewActivity extends AppCompatActivity {
 
         imageUriString = getIntent().getStringExtra("imageUri");
         if (imageUriString != null) {
-            if (imageUriString.startsWith("drawable://")) {
-                try {
-                    // Handle the custom drawable resource path
-                    int drawableId = Integer.parseInt(imageUriString.substring("drawable://".length()));
-                    imageViewPreview.setImageResource(drawableId);
-                } catch (NumberFormatException e) {
-                    Log.e("ImagePreviewActivity", "Failed to parse drawable resource ID.", e);
-                    Toast.makeText(this, "Failed to load image.", Toast.LENGTH_SHORT).show();
-                }
-            } else {
-                // Handle the standard file URI path
-                imageViewPreview.setImageURI(Uri.parse(imageUriString));
-            }
+            // Shown at screen size first; zooming in decodes only the visible tiles at full resolution.
+            imageViewPreview.setImage(imageUriString);
         }
 
         buttonSendWithCaption.setOnClickListener(v -> sendImageAndCaption());
@@ -16,14 +16,14 @@ public class LoginActivity extends AppCompatActivity {
     private EditText editTextPassword;
     private Button buttonLogin;
     private TextView textViewSignUp;
-    private DatabaseHelper databaseHelper;
+    private ChatRepository repository;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_login);
 
-        databaseHelper = new DatabaseHelper(this);
+        repository = ChatRepository.getInstance(this);
 
         editTextUsername = findViewById(R.id.editTextUsername);
         editTextPassword = findViewById(R.id.editTextPassword);
@@ -41,22 +41,26 @@ public class LoginActivity extends AppCompatActivity {
                     return;
                 }
 
-                if (databaseHelper.checkUser(username, password)) {
-                    // Display "Login Successful" message
-                    Toast.makeText(LoginActivity.this, "Login Successful", Toast.LENGTH_SHORT).show();
+                buttonLogin.setEnabled(false);
+                repository.checkUser(username, password, isValid -> {
+                    buttonLogin.setEnabled(true);
+                    if (isValid) {
+                        // Display "Login Successful" message
+                        Toast.makeText(LoginActivity.this, "Login Successful", Toast.LENGTH_SHORT).show();
 
-                    SharedPreferences prefs = getSharedPreferences("ChatApp", MODE_PRIVATE);
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putString("USERNAME", username);
-                    editor.apply();
+                        SharedPreferences prefs = getSharedPreferences("ChatApp", MODE_PRIVATE);
+                        SharedPreferences.Editor editor = prefs.edit();
+                        editor.putString("USERNAME", username);
+                        editor.apply();
 
-                    Intent intent = new Intent(LoginActivity.this, MainActivity.class);
-                    intent.putExtra("USERNAME", username);
-                    startActivity(intent);
-                    finish();
-                } else {
-                    Toast.makeText(LoginActivity.this, "Invalid Username or Password", Toast.LENGTH_SHORT).show();
-                }
+                        Intent intent = new Intent(LoginActivity.this, MainActivity.class);
+                        intent.putExtra("USERNAME", username);
+                        startActivity(intent);
+                        finish();
+                    } else {
+                        Toast.makeText(LoginActivity.this, "Invalid Username or Password", Toast.LENGTH_SHORT).show();
+                    }
+                });
             }
         });
 
@@ -9,13 +9,12 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
     private ListView listViewUsers;
-    private DatabaseHelper databaseHelper;
+    private ChatRepository repository;
     private List<User> userList;
     private UserAdapter adapter;
     private Toolbar toolbar;
@@ -30,7 +29,7 @@ public class MainActivity extends AppCompatActivity {
         setSupportActionBar(toolbar);
 
         listViewUsers = findViewById(R.id.listViewUsers);
-        databaseHelper = new DatabaseHelper(this);
+        repository = ChatRepository.getInstance(this);
         userList = new ArrayList<>();
 
         currentUsername = getIntent().getStringExtra("USERNAME");
@@ -51,26 +50,15 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         loadUsersAndConversations();
-        adapter.notifyDataSetChanged();
     }
 
     private void loadUsersAndConversations() {
-        List<User> allUsers = databaseHelper.getAllUsers();
-        userList.clear();
-
-        for (User user : allUsers) {
-            if (user != null && user.getName() != null && !user.getName().equals(currentUsername)) {
-                // This line will no longer cause an error
-                Message lastMessage = databaseHelper.getLastMessage(currentUsername, user.getName());
-                if (lastMessage != null) {
-                    user.setLastMessage(lastMessage.getContent());
-                    user.setLastMessageTimestamp(lastMessage.getTimestamp());
-                }
-                userList.add(user);
-            }
-        }
-
-        Collections.sort(userList, (u1, u2) -> Long.compare(u2.getLastMessageTimestamp(), u1.getLastMessageTimestamp()));
+        // Already sorted by last activity and carrying each user's last message.
+        repository.getConversationSummaries(currentUsername, summaries -> {
+            userList.clear();
+            userList.addAll(summaries);
+            adapter.notifyDataSetChanged();
+        });
     }
 
     @Override
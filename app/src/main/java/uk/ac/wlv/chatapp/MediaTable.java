@@ -0,0 +1,194 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed store of the image files that messages point at. Each distinct image is one
+ * row, keyed by the SHA-256 that {@link ImageIngestor} also names the file by. The row counts how
+ * many messages reference it. Messages link to their row by message.media_id.
+ *
+ * A row whose count drops to zero is left for {@link #collectUnreferenced} to remove, together
+ * with its file. A message can still be handed a file that was collected after it was ingested;
+ * {@link ImageIngestor#restore} writes it again before the message takes its reference.
+ */
+final class MediaTable {
+
+    private static final String TAG = "MediaTable";
+
+    static final String TABLE_MEDIA = "media";
+    static final String COLUMN_MEDIA_ID = "media_id";
+    private static final String COLUMN_HASH = "media_hash";
+    private static final String COLUMN_URI = "media_uri";
+    private static final String COLUMN_SIZE = "media_size";
+    private static final String COLUMN_WIDTH = "media_width";
+    private static final String COLUMN_HEIGHT = "media_height";
+    private static final String COLUMN_REF_COUNT = "ref_count";
+
+    private static final String CREATE_MEDIA_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_MEDIA + "("
+            + COLUMN_MEDIA_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + COLUMN_HASH + " TEXT NOT NULL UNIQUE,"
+            + COLUMN_URI + " TEXT NOT NULL,"
+            + COLUMN_SIZE + " INTEGER NOT NULL DEFAULT 0,"
+            + COLUMN_WIDTH + " INTEGER NOT NULL DEFAULT 0,"
+            + COLUMN_HEIGHT + " INTEGER NOT NULL DEFAULT 0,"
+            + COLUMN_REF_COUNT + " INTEGER NOT NULL DEFAULT 0" + ")";
+
+    // Lets garbage collection find unreferenced rows without scanning the table.
+    private static final String CREATE_REF_COUNT_INDEX = "CREATE INDEX IF NOT EXISTS idx_media_ref_count ON "
+            + TABLE_MEDIA + "(" + COLUMN_REF_COUNT + ")";
+
+    // Files written by ImageIngestor: .../media/<sha-256>.jpg
+    private static final Pattern INGESTED_FILE = Pattern.compile(
+            "/" + ImageIngestor.MEDIA_DIRECTORY + "/([0-9a-f]{64})\\.jpg$");
+
+    private MediaTable() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL(CREATE_MEDIA_TABLE);
+        db.execSQL(CREATE_REF_COUNT_INDEX);
+    }
+
+    static void drop(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MEDIA);
+    }
+
+    /**
+     * Returns the row for {@code media}, creating it if this is the first message to use it,
+     * and counts one more reference to it. Call inside the transaction that inserts the message.
+     */
+    static long acquire(SQLiteDatabase db, ImageIngestor.Result media) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_HASH, media.hash);
+        values.put(COLUMN_URI, media.uri);
+        values.put(COLUMN_SIZE, media.byteSize);
+        values.put(COLUMN_WIDTH, media.width);
+        values.put(COLUMN_HEIGHT, media.height);
+        db.insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        db.execSQL("UPDATE " + TABLE_MEDIA + " SET " + COLUMN_REF_COUNT + " = " + COLUMN_REF_COUNT + " + 1"
+                + " WHERE " + COLUMN_HASH + " = ?", new Object[]{media.hash});
+        Cursor cursor = db.query(TABLE_MEDIA, new String[]{COLUMN_MEDIA_ID}, COLUMN_HASH + " = ?",
+                new String[]{media.hash}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops the references held by the messages matching {@code messageSelection}. Call inside
+     * the transaction that deletes them, before the delete.
+     *
+     * @return true if the count of some media reached zero, so there is something to collect;
+     *         false if every media the messages used is still referenced by other messages
+     */
+    static boolean releaseForMessages(SQLiteDatabase db, String messageSelection, String[] selectionArgs) {
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_MEDIA_ID + ", COUNT(*) FROM message WHERE ("
+                + messageSelection + ") AND " + COLUMN_MEDIA_ID + " IS NOT NULL GROUP BY " + COLUMN_MEDIA_ID, selectionArgs);
+        boolean unreferenced = false;
+        try {
+            while (cursor.moveToNext()) {
+                String[] mediaId = {String.valueOf(cursor.getLong(0))};
+                db.execSQL("UPDATE " + TABLE_MEDIA + " SET " + COLUMN_REF_COUNT + " = MAX(0, " + COLUMN_REF_COUNT + " - ?)"
+                        + " WHERE " + COLUMN_MEDIA_ID + " = ?", new Object[]{cursor.getLong(1), mediaId[0]});
+                unreferenced |= DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_MEDIA + " WHERE "
+                        + COLUMN_MEDIA_ID + " = ? AND " + COLUMN_REF_COUNT + " <= 0", mediaId) > 0;
+            }
+        } finally {
+            cursor.close();
+        }
+        return unreferenced;
+    }
+
+    /**
+     * Deletes every unreferenced row, then its file. Runs on the writer thread, so no message can
+     * take a new reference to a row between the check and the delete. Files are only removed once
+     * the row deletes have committed, so a rolled-back collection never leaves a row pointing at a
+     * missing file; a file that cannot be removed is logged and left behind, and sending the same
+     * image again writes over it.
+     *
+     * @return the number of files removed
+     */
+    static int collectUnreferenced(SQLiteDatabase db) {
+        List<String> paths = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_MEDIA, new String[]{COLUMN_URI}, COLUMN_REF_COUNT + " <= 0",
+                    null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String path = Uri.parse(cursor.getString(0)).getPath();
+                    if (path != null) {
+                        paths.add(path);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.delete(TABLE_MEDIA, COLUMN_REF_COUNT + " <= 0", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        int removed = 0;
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.delete()) {
+                removed++;
+            } else if (file.exists()) {
+                Log.w(TAG, "Could not delete unreferenced " + file);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Registers images that were ingested before this table existed and links their messages to
+     * them, then recounts every reference. Only files named by their hash are adopted; messages
+     * pointing elsewhere keep a null media_id. Safe to run again. Runs only as part of the v12
+     * upgrade, before v15 turned message_type into an integer code, so it matches the type name.
+     */
+    static void adoptIngestedFiles(SQLiteDatabase db) {
+        Cursor cursor = db.query(true, "message", new String[]{"message_content", "message_width", "message_height"},
+                "message_type = 'IMAGE' AND " + COLUMN_MEDIA_ID + " IS NULL", null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String uri = cursor.getString(0);
+                Matcher matcher = uri != null ? INGESTED_FILE.matcher(uri) : null;
+                if (matcher == null || !matcher.find()) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_HASH, matcher.group(1));
+                values.put(COLUMN_URI, uri);
+                values.put(COLUMN_WIDTH, cursor.getInt(1));
+                values.put(COLUMN_HEIGHT, cursor.getInt(2));
+                db.insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                db.execSQL("UPDATE message SET " + COLUMN_MEDIA_ID + " = (SELECT " + COLUMN_MEDIA_ID + " FROM "
+                        + TABLE_MEDIA + " WHERE " + COLUMN_HASH + " = ?) WHERE message_content = ? AND "
+                        + COLUMN_MEDIA_ID + " IS NULL", new Object[]{matcher.group(1), uri});
+            }
+        } finally {
+            cursor.close();
+        }
+        recountReferences(db);
+    }
+
+    /** Sets every row's count to the number of messages pointing at it; safe to run again. */
+    static void recountReferences(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + TABLE_MEDIA + " SET " + COLUMN_REF_COUNT + " = (SELECT COUNT(*) FROM message m WHERE m."
+                + COLUMN_MEDIA_ID + " = " + TABLE_MEDIA + "." + COLUMN_MEDIA_ID + ")");
+    }
+}
@@ -1,17 +1,44 @@
 package uk.ac.wlv.chatapp;
 
 public class Message {
+    // Participant id of a message composed by name that has not been saved yet.
+    public static final long NO_USER = -1;
+
     public enum MessageType {
-        TEXT, IMAGE
+        TEXT(0), IMAGE(1);
+
+        // Stored in message.message_type; never renumber.
+        public final int code;
+
+        private static final MessageType[] BY_CODE = {TEXT, IMAGE};
+
+        MessageType(int code) {
+            this.code = code;
+        }
+
+        /** Returns the type stored as {@code code}, or TEXT for a code this version does not know. */
+        public static MessageType fromCode(int code) {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : TEXT;
+        }
     }
 
+    private long id;
     private String content;
-    private String sender;
-    private String receiver;
+    private final String sender;
+    private final String receiver;
+    // user_id of each participant, compared instead of the names; NO_USER until saved.
+    private long senderId = NO_USER;
+    private long receiverId = NO_USER;
     private long timestamp;
     private MessageType type;
     private String caption; // New field for the caption
-    private boolean isSelected = false;
+    // Pixel size of an image message, or 0 when unknown (older messages and text).
+    private int width;
+    private int height;
+    // Tiny encoded preview of an image message, or null.
+    private byte[] placeholder;
+    // Row in the media table for an ingested image, or 0.
+    private long mediaId;
 
     // Constructor for text messages (no caption)
     public Message(String content, String sender, String receiver, long timestamp, MessageType type) {
@@ -33,15 +60,56 @@ public class Message {
         this.caption = caption;
     }
 
+    // Constructor for rows read from the database, whose participants are already user ids.
+    public Message(String content, long senderId, String sender, long receiverId, String receiver, long timestamp,
+                   MessageType type, String caption) {
+        this(content, sender, receiver, timestamp, type, caption);
+        this.senderId = senderId;
+        this.receiverId = receiverId;
+    }
+
+    // Copy of another message; the placeholder bytes are shared since they are never modified.
+    public Message(Message other) {
+        this.content = other.content;
+        this.sender = other.sender;
+        this.receiver = other.receiver;
+        this.senderId = other.senderId;
+        this.receiverId = other.receiverId;
+        this.timestamp = other.timestamp;
+        this.type = other.type;
+        this.caption = other.caption;
+        this.id = other.id;
+        this.width = other.width;
+        this.height = other.height;
+        this.placeholder = other.placeholder;
+        this.mediaId = other.mediaId;
+    }
+
     // Getters and Setters
+    public long getId() { return id; }
+    public void setId(long id) { this.id = id; }
     public String getContent() { return content; }
     public void setContent(String content) { this.content = content; }
     public String getSender() { return sender; }
     public String getReceiver() { return receiver; }
+    public long getSenderId() { return senderId; }
+    public long getReceiverId() { return receiverId; }
+    public void setParticipantIds(long senderId, long receiverId) {
+        this.senderId = senderId;
+        this.receiverId = receiverId;
+    }
     public long getTimestamp() { return timestamp; }
     public MessageType getType() { return type; }
     public String getCaption() { return caption; }
     public void setCaption(String caption) { this.caption = caption; }
-    public boolean isSelected() { return isSelected; }
-    public void setSelected(boolean selected) { isSelected = selected; }
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public void setDimensions(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+    public byte[] getPlaceholder() { return placeholder; }
+    public void setPlaceholder(byte[] placeholder) { this.placeholder = placeholder; }
+    public long getMediaId() { return mediaId; }
+    public void setMediaId(long mediaId) { this.mediaId = mediaId; }
 }
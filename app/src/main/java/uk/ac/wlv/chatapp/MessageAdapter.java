@@ -1,6 +1,7 @@
 package uk.ac.wlv.chatapp;
 
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Color;
@@ -15,25 +16,70 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.content.FileProvider;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Shows the loaded window of a conversation, or search results in its place. Every change is
+ * submitted as a new list to an {@link AsyncListDiffer}, so the diff runs in the background and
+ * only the rows that changed are rebound. Rows have stable ids taken from message_id, and
+ * selection is tracked by id outside the model, so toggling it rebinds only that row's background.
+ */
 public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
-    private List<Message> messageList;
-    private final List<Message> messageListFull;
-    private final String currentUsername;
-    private final Context context;
-    private final DatabaseHelper databaseHelper;
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    private static final DiffUtil.ItemCallback<Message> DIFF_CALLBACK = new DiffUtil.ItemCallback<Message>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem.getId() == newItem.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem.getTimestamp() == newItem.getTimestamp()
+                    && oldItem.getType() == newItem.getType()
+                    && Objects.equals(oldItem.getContent(), newItem.getContent())
+                    && Objects.equals(oldItem.getCaption(), newItem.getCaption());
+        }
+    };
+
+    private final AsyncListDiffer<Message> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    // The pages currently loaded by MessagePager, oldest first.
+    private final List<Message> window = new ArrayList<>();
+    // Non-null while search results are shown instead of the loaded window.
+    private List<Message> searchResults;
+    private final Set<Long> selectedIds = new LinkedHashSet<>();
     private boolean isSelectionMode = false;
-    private final List<Message> selectedMessages = new ArrayList<>();
+    private final List<Runnable> pendingCommitActions = new ArrayList<>();
+    private int submittedGeneration;
+    private int committedGeneration;
+
+    // Compared against each message's sender id rather than matching names per row.
+    private long currentUserId = Message.NO_USER;
+    private final Context context;
+    private final ChatRepository repository;
+    private final ImageLoader imageLoader;
+    // Bounds of an image bubble, in pixels.
+    private final int imageMaxWidth;
+    private final int imageMaxHeight;
+    private final int imageMinSize;
     private final SelectionListener selectionListener;
 
     private static final int VIEW_TYPE_SENT_TEXT = 1;
@@ -41,19 +87,39 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     private static final int VIEW_TYPE_SENT_IMAGE = 3;
     private static final int VIEW_TYPE_RECEIVED_IMAGE = 4;
 
-    public MessageAdapter(Context context, List<Message> messageList, String currentUsername, SelectionListener listener) {
+    public MessageAdapter(Context context, SelectionListener listener) {
         this.context = context;
-        this.messageList = messageList;
-        this.messageListFull = new ArrayList<>(messageList);
-        this.currentUsername = currentUsername;
-        this.databaseHelper = new DatabaseHelper(context);
+        this.repository = ChatRepository.getInstance(context);
+        this.imageLoader = ImageLoader.getInstance(context);
+        float density = context.getResources().getDisplayMetrics().density;
+        this.imageMaxWidth = Math.round(250 * density);
+        this.imageMaxHeight = Math.round(320 * density);
+        this.imageMinSize = Math.round(96 * density);
         this.selectionListener = listener;
+        setHasStableIds(true);
+    }
+
+    /** Sets the user id of the signed-in user, which tells sent rows from received ones. */
+    public void setCurrentUserId(long userId) {
+        if (currentUserId != userId) {
+            currentUserId = userId;
+            notifyDataSetChanged();
+        }
+    }
+
+    private Message getItem(int position) {
+        return differ.getCurrentList().get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
     }
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messageList.get(position);
-        boolean isSentByMe = message.getSender().equals(currentUsername);
+        Message message = getItem(position);
+        boolean isSentByMe = message.getSenderId() == currentUserId;
 
         if (message.getType() == Message.MessageType.IMAGE) {
             return isSentByMe ? VIEW_TYPE_SENT_IMAGE : VIEW_TYPE_RECEIVED_IMAGE;
@@ -66,27 +132,65 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view;
+        RecyclerView.ViewHolder holder;
         switch (viewType) {
             case VIEW_TYPE_SENT_TEXT:
                 view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message_sent, parent, false);
-                return new TextMessageViewHolder(view);
+                holder = new TextMessageViewHolder(view);
+                break;
             case VIEW_TYPE_RECEIVED_TEXT:
                 view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message_received, parent, false);
-                return new TextMessageViewHolder(view);
+                holder = new TextMessageViewHolder(view);
+                break;
             case VIEW_TYPE_SENT_IMAGE:
                 view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message_sent_image, parent, false);
-                return new ImageMessageViewHolder(view);
+                holder = new ImageMessageViewHolder(view);
+                break;
             case VIEW_TYPE_RECEIVED_IMAGE:
                 view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message_received_image, parent, false);
-                return new ImageMessageViewHolder(view);
+                holder = new ImageMessageViewHolder(view);
+                break;
             default:
                 throw new IllegalArgumentException("Invalid view type");
         }
+
+        // Listeners are attached once per holder and resolve the row when they fire.
+        holder.itemView.setOnLongClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (!isSelectionMode && position != RecyclerView.NO_POSITION) {
+                isSelectionMode = true;
+                toggleSelection(position);
+                selectionListener.onSelectionModeChanged(true, selectedIds.size());
+            }
+            return true;
+        });
+
+        holder.itemView.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (isSelectionMode && position != RecyclerView.NO_POSITION) {
+                toggleSelection(position);
+                selectionListener.onSelectionModeChanged(true, selectedIds.size());
+                if (selectedIds.isEmpty()) {
+                    isSelectionMode = false;
+                    selectionListener.onSelectionModeChanged(false, 0);
+                }
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (!payloads.isEmpty() && onlySelectionPayloads(payloads)) {
+            bindSelection(holder, getItem(position));
+            return;
+        }
+        onBindViewHolder(holder, position);
     }
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Message message = messageList.get(position);
+        Message message = getItem(position);
         String formattedTime = formatTimestamp(message.getTimestamp());
 
         if (holder instanceof TextMessageViewHolder) {
@@ -104,36 +208,62 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
                 imageHolder.textViewCaption.setVisibility(View.GONE);
             }
 
-            String path = message.getContent();
-            imageHolder.imageViewMessage.setImageURI(Uri.parse(path));
+            // Sized before loading, so the row never changes height and the loader decodes at the final size.
+            reserveImageSize(imageHolder.imageViewMessage, message.getWidth(), message.getHeight());
+            imageLoader.load(message.getContent(), imageHolder.imageViewMessage, message.getPlaceholder());
         }
 
-        holder.itemView.setBackgroundColor(message.isSelected() ? Color.LTGRAY : Color.TRANSPARENT);
+        bindSelection(holder, message);
+    }
 
-        holder.itemView.setOnLongClickListener(v -> {
-            if (!isSelectionMode) {
-                isSelectionMode = true;
-                toggleSelection(message);
-                selectionListener.onSelectionModeChanged(true, selectedMessages.size());
+    /**
+     * Fits the image's aspect ratio into a box at most {@link #imageMaxWidth} wide and
+     * {@link #imageMaxHeight} tall. Images of unknown size keep a square box.
+     */
+    private void reserveImageSize(ImageView imageView, int width, int height) {
+        int viewWidth = imageMaxWidth;
+        int viewHeight = imageMaxWidth;
+        if (width > 0 && height > 0) {
+            viewHeight = Math.round((float) imageMaxWidth * height / width);
+            if (viewHeight > imageMaxHeight) {
+                viewHeight = imageMaxHeight;
+                viewWidth = Math.round((float) imageMaxHeight * width / height);
             }
-            return true;
-        });
+            // Very wide or tall images are cropped rather than shrunk to a sliver.
+            viewWidth = Math.max(viewWidth, imageMinSize);
+            viewHeight = Math.max(viewHeight, imageMinSize);
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if (params.width != viewWidth || params.height != viewHeight) {
+            params.width = viewWidth;
+            params.height = viewHeight;
+            imageView.setLayoutParams(params);
+        }
+    }
 
-        holder.itemView.setOnClickListener(v -> {
-            if (isSelectionMode) {
-                toggleSelection(message);
-                selectionListener.onSelectionModeChanged(true, selectedMessages.size());
-                if (selectedMessages.isEmpty()) {
-                    isSelectionMode = false;
-                    selectionListener.onSelectionModeChanged(false, 0);
-                }
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        if (holder instanceof ImageMessageViewHolder) {
+            imageLoader.cancel(((ImageMessageViewHolder) holder).imageViewMessage);
+        }
+    }
+
+    private static boolean onlySelectionPayloads(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_SELECTION) {
+                return false;
             }
-        });
+        }
+        return true;
+    }
+
+    private void bindSelection(RecyclerView.ViewHolder holder, Message message) {
+        holder.itemView.setBackgroundColor(selectedIds.contains(message.getId()) ? Color.LTGRAY : Color.TRANSPARENT);
     }
 
     @Override
     public int getItemCount() {
-        return messageList.size();
+        return differ.getCurrentList().size();
     }
 
     private String formatTimestamp(long timestamp) {
@@ -164,6 +294,7 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     }
 
     public void shareSelectedMessage() {
+        List<Message> selectedMessages = getSelectedMessages();
         if (selectedMessages.size() != 1) {
             return; // Safety check
         }
@@ -177,6 +308,11 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         } else if (messageToShare.getType() == Message.MessageType.IMAGE) {
             shareIntent.setType("image/jpeg");
             Uri imageUri = Uri.parse(messageToShare.getContent());
+            if (ContentResolver.SCHEME_CONTENT.equals(imageUri.getScheme())) {
+                // Picked from MediaStore, which grants the receiving app read access to the same URI.
+                startImageShare(shareIntent, imageUri, messageToShare.getCaption());
+                return;
+            }
             File imageFile;
             try {
                 // This is a simplified way to handle file URIs. A more robust solution
@@ -199,12 +335,7 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
                         imageFile
                 );
 
-                shareIntent.putExtra(Intent.EXTRA_STREAM, contentUri);
-                if (messageToShare.getCaption() != null && !messageToShare.getCaption().isEmpty()) {
-                    shareIntent.putExtra(Intent.EXTRA_TEXT, messageToShare.getCaption());
-                }
-                shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                context.startActivity(Intent.createChooser(shareIntent, "Share image via"));
+                startImageShare(shareIntent, contentUri, messageToShare.getCaption());
             } catch (IllegalArgumentException e) {
                 Log.e("MessageAdapter", "FileProvider error for path: " + imageFile.getAbsolutePath(), e);
                 Toast.makeText(context, "Failed to share image. File path is invalid.", Toast.LENGTH_LONG).show();
@@ -212,69 +343,165 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         }
     }
 
-    private void toggleSelection(Message message) {
-        message.setSelected(!message.isSelected());
-        if (message.isSelected()) {
-            selectedMessages.add(message);
-        } else {
-            selectedMessages.remove(message);
+    private void startImageShare(Intent shareIntent, Uri contentUri, String caption) {
+        shareIntent.putExtra(Intent.EXTRA_STREAM, contentUri);
+        if (caption != null && !caption.isEmpty()) {
+            shareIntent.putExtra(Intent.EXTRA_TEXT, caption);
         }
-        notifyDataSetChanged();
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        context.startActivity(Intent.createChooser(shareIntent, "Share image via"));
     }
 
-    public void deleteSelectedMessages() {
-        List<Long> timestampsToDelete = new ArrayList<>();
-        for (Message message : selectedMessages) {
-            timestampsToDelete.add(message.getTimestamp());
+    private void toggleSelection(int position) {
+        long id = getItem(position).getId();
+        if (!selectedIds.remove(id)) {
+            selectedIds.add(id);
         }
-        databaseHelper.deleteMessages(timestampsToDelete);
-        messageList.removeAll(selectedMessages);
-        messageListFull.removeAll(selectedMessages);
-        selectedMessages.clear();
+        notifyItemChanged(position, PAYLOAD_SELECTION);
+    }
+
+    private List<Message> getSelectedMessages() {
+        List<Message> selectedMessages = new ArrayList<>();
+        for (Message message : differ.getCurrentList()) {
+            if (selectedIds.contains(message.getId())) {
+                selectedMessages.add(message);
+            }
+        }
+        return selectedMessages;
+    }
+
+    private void notifyMessageChanged(long id, @Nullable Object payload) {
+        List<Message> current = differ.getCurrentList();
+        for (int i = 0; i < current.size(); i++) {
+            if (current.get(i).getId() == id) {
+                notifyItemChanged(i, payload);
+                return;
+            }
+        }
+    }
+
+    /** Deletes the selected messages; {@code onCommitted}, if any, gets their ids once the delete has committed. */
+    public void deleteSelectedMessages(@Nullable ChatRepository.Callback<List<Long>> onCommitted) {
+        List<Long> deletedIds = new ArrayList<>(selectedIds);
+        repository.deleteMessages(deletedIds, onCommitted == null ? null : result -> onCommitted.onResult(deletedIds));
+        window.removeIf(message -> selectedIds.contains(message.getId()));
+        if (searchResults != null) {
+            searchResults.removeIf(message -> selectedIds.contains(message.getId()));
+        }
+        selectedIds.clear();
         isSelectionMode = false;
-        notifyDataSetChanged();
+        submitDisplayedList();
         selectionListener.onSelectionModeChanged(false, 0);
     }
 
     public void clearSelection() {
-        for (Message message : messageList) {
-            message.setSelected(false);
-        }
-        selectedMessages.clear();
+        List<Long> previouslySelected = new ArrayList<>(selectedIds);
+        selectedIds.clear();
         isSelectionMode = false;
-        notifyDataSetChanged();
+        for (long id : previouslySelected) {
+            notifyMessageChanged(id, PAYLOAD_SELECTION);
+        }
     }
 
-    public void filter(String text) {
-        messageList.clear();
-        if (text.isEmpty()) {
-            messageList.addAll(messageListFull);
-        } else {
-            text = text.toLowerCase();
-            for (Message item : messageListFull) {
-                if (item.getType() == Message.MessageType.TEXT && item.getContent().toLowerCase().contains(text)) {
-                    messageList.add(item);
-                } else if (item.getType() == Message.MessageType.IMAGE && item.getCaption() != null && item.getCaption().toLowerCase().contains(text)) {
-                    messageList.add(item);
-                }
+    /**
+     * Shows search results in place of the loaded window. Results already loaded in the window
+     * are swapped for those instances so edits stay shared between the two.
+     */
+    public void showSearchResults(List<Message> results) {
+        Map<Long, Message> loaded = new HashMap<>();
+        for (Message message : window) {
+            loaded.put(message.getId(), message);
+        }
+        List<Message> canonical = new ArrayList<>(results.size());
+        for (Message result : results) {
+            Message existing = loaded.get(result.getId());
+            canonical.add(existing != null ? existing : result);
+        }
+        searchResults = canonical;
+        submitDisplayedList();
+    }
+
+    public boolean isShowingSearchResults() {
+        return searchResults != null;
+    }
+
+    public void clearSearchResults() {
+        if (searchResults == null) {
+            return;
+        }
+        searchResults = null;
+        submitDisplayedList();
+    }
+
+    // While search results are shown, window changes are only recorded for when the search is cleared.
+
+    public void prependMessages(List<Message> page) {
+        window.addAll(0, page);
+        if (searchResults == null) {
+            submitDisplayedList();
+        }
+    }
+
+    public void appendMessages(List<Message> page) {
+        window.addAll(page);
+        if (searchResults == null) {
+            submitDisplayedList();
+        }
+    }
+
+    public void addMessage(Message message) {
+        window.add(message);
+        if (searchResults == null) {
+            submitDisplayedList();
+        }
+    }
+
+    public void removeMessages(List<Message> page) {
+        Set<Long> removedIds = new HashSet<>();
+        for (Message message : page) {
+            removedIds.add(message.getId());
+        }
+        window.removeIf(message -> removedIds.contains(message.getId()));
+        if (searchResults == null) {
+            if (selectedIds.removeAll(removedIds) && isSelectionMode) {
+                selectionListener.onSelectionModeChanged(!selectedIds.isEmpty(), selectedIds.size());
             }
+            submitDisplayedList();
+        }
+    }
+
+    /** Runs {@code action} once every list submitted so far is shown, e.g. to scroll to a new row. */
+    public void runAfterPendingUpdates(Runnable action) {
+        if (committedGeneration == submittedGeneration) {
+            action.run();
+        } else {
+            pendingCommitActions.add(action);
         }
-        notifyDataSetChanged();
     }
 
-    public void updateList(List<Message> newList) {
-        messageList.clear();
-        messageList.addAll(newList);
-        messageListFull.clear();
-        messageListFull.addAll(newList);
-        notifyDataSetChanged();
+    private void submitDisplayedList() {
+        final int generation = ++submittedGeneration;
+        List<Message> displayed = new ArrayList<>(searchResults != null ? searchResults : window);
+        differ.submitList(displayed, () -> {
+            // A list superseded by a newer submission is never committed, so only the latest one runs actions.
+            if (generation != submittedGeneration) {
+                return;
+            }
+            committedGeneration = generation;
+            List<Runnable> actions = new ArrayList<>(pendingCommitActions);
+            pendingCommitActions.clear();
+            for (Runnable action : actions) {
+                action.run();
+            }
+        });
     }
 
     public int getSelectedCount() {
-        return selectedMessages.size();
+        return selectedIds.size();
     }
 
     public boolean isEditAllowed() {
+        List<Message> selectedMessages = getSelectedMessages();
         if (selectedMessages.size() == 1) {
             Message.MessageType type = selectedMessages.get(0).getType();
             return type == Message.MessageType.TEXT || type == Message.MessageType.IMAGE;
@@ -284,12 +511,10 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     public void editSelectedMessage() {
         if (!isEditAllowed()) return;
-        final Message message = selectedMessages.get(0);
-        final int position = messageList.indexOf(message);
-        showEditDialog(message, position);
+        showEditDialog(getSelectedMessages().get(0));
     }
 
-    private void showEditDialog(final Message message, final int position) {
+    private void showEditDialog(final Message message) {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
         final View customLayout = LayoutInflater.from(context).inflate(R.layout.dialog_edit_message, null);
         builder.setView(customLayout);
@@ -306,14 +531,14 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
             if (isTextMessage) {
                 if (!newText.isEmpty()) {
-                    databaseHelper.updateMessage(message.getTimestamp(), newText);
+                    repository.updateMessage(message.getId(), newText);
                     message.setContent(newText);
-                    notifyItemChanged(position);
+                    notifyMessageChanged(message.getId(), null);
                 }
             } else {
-                databaseHelper.updateMessageCaption(message.getTimestamp(), newText);
+                repository.updateMessageCaption(message.getId(), newText);
                 message.setCaption(newText);
-                notifyItemChanged(position);
+                notifyMessageChanged(message.getId(), null);
             }
         });
 
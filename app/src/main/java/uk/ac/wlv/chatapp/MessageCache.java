@@ -0,0 +1,218 @@
+package uk.ac.wlv.chatapp;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The newest page of the most recently opened conversations, so switching back to a chat does
+ * not have to wait on the database. Pages are evicted least recently used first once there are
+ * more than {@code maxConversations} of them or their estimated size passes {@code maxBytes}.
+ *
+ * {@link ChatRepository} keeps the cache in step with every write: appends are added to the
+ * cached page and edits applied to it, while deletes and bulk inserts drop the page so the next
+ * open reloads it. Messages are copied in and out, since the adapter edits the ones it shows.
+ * A read only fills the cache if no write happened while it was running, so a page read before
+ * a write can never be stored after it; writes are applied after they commit and are safe to
+ * apply to a page that already has them.
+ *
+ * Pages are keyed by {@link DatabaseHelper#conversationId(long, long)}, the same key the message
+ * table uses, so the two can never disagree about which conversation a message belongs to.
+ */
+final class MessageCache {
+
+    static final int DEFAULT_MAX_CONVERSATIONS = 8;
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // Rough per-message cost of the object, its fields and the list slot.
+    private static final int MESSAGE_OVERHEAD_BYTES = 96;
+
+    private static final class Page {
+        final List<Message> messages;
+        final int limit;
+        int bytes;
+
+        Page(List<Message> messages, int limit) {
+            this.messages = messages;
+            this.limit = limit;
+        }
+    }
+
+    private final int maxConversations;
+    private final int maxBytes;
+    private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private int bytes;
+    // Bumped by every write so reads that overlapped one are not cached.
+    private long version;
+
+    MessageCache(int maxConversations, int maxBytes) {
+        this.maxConversations = maxConversations;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the state to pass to {@link #put} for a read that starts now. */
+    synchronized long version() {
+        return version;
+    }
+
+    /** Returns copies of the cached newest {@code limit} messages, oldest first, or null. */
+    @Nullable
+    synchronized List<Message> get(long conversationKey, int limit) {
+        Page page = pages.get(conversationKey);
+        if (page == null || page.limit != limit) {
+            return null;
+        }
+        return copyOf(page.messages);
+    }
+
+    /**
+     * Caches the newest page of a conversation, read when {@link #version} returned
+     * {@code readVersion}. Ignored if a write has happened since.
+     */
+    synchronized void put(long conversationKey, List<Message> newest, int limit, long readVersion) {
+        if (readVersion != version) {
+            return;
+        }
+        Page page = new Page(copyOf(newest), limit);
+        page.bytes = sizeOf(page.messages);
+        replace(conversationKey, page);
+        trimToSize();
+    }
+
+    /** Adds a message just inserted at the end of its conversation to the cached page, if any. */
+    synchronized void append(long conversationKey, Message message) {
+        version++;
+        Page page = pages.get(conversationKey);
+        if (page == null || contains(page, message.getId())) {
+            // A read that ran after the insert committed may already have cached it.
+            return;
+        }
+        page.messages.add(new Message(message));
+        page.bytes += sizeOf(message);
+        bytes += sizeOf(message);
+        // Keep exactly the newest page; the oldest message now belongs to the page before it.
+        while (page.messages.size() > page.limit) {
+            Message dropped = page.messages.remove(0);
+            page.bytes -= sizeOf(dropped);
+            bytes -= sizeOf(dropped);
+        }
+        trimToSize();
+    }
+
+    synchronized void updateContent(long messageId, String content) {
+        version++;
+        update(messageId, message -> message.setContent(content));
+    }
+
+    synchronized void updateCaption(long messageId, String caption) {
+        version++;
+        update(messageId, message -> message.setCaption(caption));
+    }
+
+    /** Drops every cached page holding one of {@code messageIds}. */
+    synchronized void removeMessages(Collection<Long> messageIds) {
+        version++;
+        Set<Long> ids = new HashSet<>(messageIds);
+        Iterator<Page> iterator = pages.values().iterator();
+        while (iterator.hasNext()) {
+            Page page = iterator.next();
+            for (Message message : page.messages) {
+                if (ids.contains(message.getId())) {
+                    bytes -= page.bytes;
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    synchronized void invalidate(long conversationKey) {
+        version++;
+        replace(conversationKey, null);
+    }
+
+    synchronized int sizeBytes() {
+        return bytes;
+    }
+
+    // Applies a change to the cached copy of a message, if any, and re-counts its page.
+    private void update(long messageId, Consumer<Message> change) {
+        for (Page page : pages.values()) {
+            for (Message message : page.messages) {
+                if (message.getId() == messageId) {
+                    int before = sizeOf(message);
+                    change.accept(message);
+                    int delta = sizeOf(message) - before;
+                    page.bytes += delta;
+                    bytes += delta;
+                    trimToSize();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean contains(Page page, long messageId) {
+        for (int i = page.messages.size() - 1; i >= 0; i--) {
+            if (page.messages.get(i).getId() == messageId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void replace(long conversationKey, @Nullable Page page) {
+        Page old = page != null ? pages.put(conversationKey, page) : pages.remove(conversationKey);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        if (page != null) {
+            bytes += page.bytes;
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<Long, Page>> iterator = pages.entrySet().iterator();
+        while ((bytes > maxBytes || pages.size() > maxConversations) && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static List<Message> copyOf(List<Message> messages) {
+        List<Message> copy = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            copy.add(new Message(message));
+        }
+        return copy;
+    }
+
+    private static int sizeOf(List<Message> messages) {
+        int size = 0;
+        for (Message message : messages) {
+            size += sizeOf(message);
+        }
+        return size;
+    }
+
+    static int sizeOf(Message message) {
+        int size = MESSAGE_OVERHEAD_BYTES;
+        // Participant names are shared instances from DatabaseHelper's cache, so only the text is counted.
+        size += 2 * (length(message.getContent()) + length(message.getCaption()));
+        if (message.getPlaceholder() != null) {
+            size += message.getPlaceholder().length;
+        }
+        return size;
+    }
+
+    private static int length(@Nullable String value) {
+        return value != null ? value.length() : 0;
+    }
+}
@@ -0,0 +1,96 @@
+package uk.ac.wlv.chatapp;
+
+import android.database.Cursor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Turns rows of {@link DatabaseHelper#MESSAGE_COLUMNS} into messages. Column indices are looked
+ * up once when the mapper is created rather than by name on every row, so create one per cursor
+ * and reuse it for all of its rows. Messages carry the participants' user ids as stored; their
+ * names are resolved through the two most recent ids, which are the two participants of a
+ * conversation, so a row usually costs a pair of comparisons rather than a lookup.
+ */
+final class MessageCursorMapper {
+
+    private final Cursor cursor;
+    private final LongFunction<String> userNames;
+    private final int idIndex;
+    private final int contentIndex;
+    private final int senderIndex;
+    private final int receiverIndex;
+    private final int timestampIndex;
+    private final int typeIndex;
+    private final int captionIndex;
+    private final int widthIndex;
+    private final int heightIndex;
+    private final int placeholderIndex;
+    private final int mediaIdIndex;
+    private long recentUserId = Message.NO_USER;
+    private String recentUserName;
+    private long olderUserId = Message.NO_USER;
+    private String olderUserName;
+
+    /** @param userNames resolves the participant ids stored on each row to usernames */
+    MessageCursorMapper(Cursor cursor, LongFunction<String> userNames) {
+        this.cursor = cursor;
+        this.userNames = userNames;
+        idIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_ID);
+        contentIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_CONTENT);
+        senderIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_SENDER_ID);
+        receiverIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_RECEIVER_ID);
+        timestampIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_TIMESTAMP);
+        typeIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_TYPE);
+        captionIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_CAPTION);
+        widthIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_WIDTH);
+        heightIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_HEIGHT);
+        placeholderIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MESSAGE_PLACEHOLDER);
+        mediaIdIndex = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_MEDIA_ID);
+    }
+
+    /** Maps the row the cursor is on. */
+    Message map() {
+        long senderId = cursor.getLong(senderIndex);
+        long receiverId = cursor.getLong(receiverIndex);
+        Message message = new Message(
+                cursor.getString(contentIndex),
+                senderId,
+                userName(senderId),
+                receiverId,
+                userName(receiverId),
+                cursor.getLong(timestampIndex),
+                Message.MessageType.fromCode(cursor.getInt(typeIndex)),
+                cursor.getString(captionIndex)
+        );
+        message.setId(cursor.getLong(idIndex));
+        message.setDimensions(cursor.getInt(widthIndex), cursor.getInt(heightIndex));
+        message.setPlaceholder(cursor.getBlob(placeholderIndex));
+        message.setMediaId(cursor.getLong(mediaIdIndex));
+        return message;
+    }
+
+    private String userName(long userId) {
+        if (userId == recentUserId) {
+            return recentUserName;
+        }
+        if (userId == olderUserId) {
+            return olderUserName;
+        }
+        String name = userNames.apply(userId);
+        olderUserId = recentUserId;
+        olderUserName = recentUserName;
+        recentUserId = userId;
+        recentUserName = name;
+        return name;
+    }
+
+    /** Maps every remaining row, in cursor order. */
+    List<Message> mapAll() {
+        List<Message> messages = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            messages.add(map());
+        }
+        return messages;
+    }
+}
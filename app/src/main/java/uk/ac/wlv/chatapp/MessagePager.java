@@ -0,0 +1,202 @@
+package uk.ac.wlv.chatapp;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Loads one conversation in keyset pages ordered by (timestamp, message id) and keeps at most
+ * {@link #MAX_PAGES} of them in memory. Moving the window in one direction drops pages from the
+ * other end, which then have to be fetched again when the user scrolls back. Pages are read
+ * through {@link ChatRepository}; all methods must be called on the main thread.
+ */
+public class MessagePager {
+
+    public static final int PAGE_SIZE = 50;
+    public static final int MAX_PAGES = 4;
+
+    /** Receives window changes so the adapter can apply them as range notifications. */
+    public interface Listener {
+        void onPagePrepended(List<Message> page);
+        void onPageAppended(List<Message> page);
+        void onPageDropped(List<Message> page);
+        void onMessageAppended(Message message);
+    }
+
+    private final ChatRepository repository;
+    private final String user1;
+    private final String user2;
+    private final Listener listener;
+    private final ArrayDeque<List<Message>> pages = new ArrayDeque<>();
+    private boolean hasOlder;
+    private boolean hasNewer;
+    private boolean loading;
+    // Bumped on every reset so pages still in flight for an older window are ignored.
+    private int generation;
+
+    public MessagePager(ChatRepository repository, String user1, String user2, Listener listener) {
+        this.repository = repository;
+        this.user1 = user1;
+        this.user2 = user2;
+        this.listener = listener;
+    }
+
+    public boolean hasOlder() {
+        return hasOlder && !loading;
+    }
+
+    public boolean hasNewer() {
+        return hasNewer && !loading;
+    }
+
+    /** Resets the window to the newest page of the conversation; {@code onLoaded} runs once it is shown. */
+    public void loadNewest(@Nullable Runnable onLoaded) {
+        final int requestGeneration = ++generation;
+        loading = true;
+        repository.getNewestMessages(user1, user2, PAGE_SIZE,
+                new ChatRepository.Callback<List<Message>>() {
+                    @Override
+                    public void onResult(List<Message> page) {
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        loading = false;
+                        while (!pages.isEmpty()) {
+                            listener.onPageDropped(pages.removeFirst());
+                        }
+                        hasOlder = page.size() == PAGE_SIZE;
+                        hasNewer = false;
+                        if (!page.isEmpty()) {
+                            pages.addLast(page);
+                            listener.onPageAppended(page);
+                        }
+                        if (onLoaded != null) {
+                            onLoaded.run();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        ChatRepository.Callback.super.onError(e);
+                        loading = false;
+                    }
+                });
+    }
+
+    public void loadOlder() {
+        if (!hasOlder() || pages.isEmpty()) {
+            return;
+        }
+        final int requestGeneration = generation;
+        loading = true;
+        Message oldest = pages.peekFirst().get(0);
+        repository.getMessagesBefore(user1, user2, oldest.getTimestamp(), oldest.getId(), PAGE_SIZE,
+                new ChatRepository.Callback<List<Message>>() {
+                    @Override
+                    public void onResult(List<Message> page) {
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        loading = false;
+                        hasOlder = page.size() == PAGE_SIZE;
+                        if (page.isEmpty()) {
+                            return;
+                        }
+                        pages.addFirst(page);
+                        listener.onPagePrepended(page);
+                        if (pages.size() > MAX_PAGES) {
+                            listener.onPageDropped(pages.removeLast());
+                            hasNewer = true;
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        ChatRepository.Callback.super.onError(e);
+                        loading = false;
+                    }
+                });
+    }
+
+    public void loadNewer() {
+        if (!hasNewer() || pages.isEmpty()) {
+            return;
+        }
+        final int requestGeneration = generation;
+        loading = true;
+        List<Message> last = pages.peekLast();
+        Message newest = last.get(last.size() - 1);
+        repository.getMessagesAfter(user1, user2, newest.getTimestamp(), newest.getId(), PAGE_SIZE,
+                new ChatRepository.Callback<List<Message>>() {
+                    @Override
+                    public void onResult(List<Message> page) {
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+                        loading = false;
+                        hasNewer = page.size() == PAGE_SIZE;
+                        if (page.isEmpty()) {
+                            return;
+                        }
+                        pages.addLast(page);
+                        listener.onPageAppended(page);
+                        if (pages.size() > MAX_PAGES) {
+                            listener.onPageDropped(pages.removeFirst());
+                            hasOlder = true;
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        ChatRepository.Callback.super.onError(e);
+                        loading = false;
+                    }
+                });
+    }
+
+    /**
+     * Forgets messages whose delete has committed, so they are not shown again or used as the key
+     * of the next page. The adapter has already removed them. A page still in flight may have been
+     * read before the delete and is ignored; the next scroll asks for it again. If nothing is left
+     * in the window but the conversation goes on, it is reset to the newest page.
+     */
+    public void removeMessages(Collection<Long> messageIds) {
+        Iterator<List<Message>> iterator = pages.iterator();
+        while (iterator.hasNext()) {
+            List<Message> page = iterator.next();
+            page.removeIf(message -> messageIds.contains(message.getId()));
+            if (page.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        if (loading) {
+            generation++;
+            loading = false;
+        }
+        if (pages.isEmpty() && (hasOlder || hasNewer)) {
+            loadNewest(null);
+        }
+    }
+
+    /**
+     * Adds a message that was just inserted at the end of the conversation. If the window has
+     * scrolled away from the newest page it is reset there instead, which already includes it.
+     */
+    public void appendNewMessage(Message message, @Nullable Runnable onShown) {
+        if (hasNewer) {
+            loadNewest(onShown);
+            return;
+        }
+        if (pages.isEmpty()) {
+            pages.addLast(new ArrayList<>());
+        }
+        pages.peekLast().add(message);
+        listener.onMessageAppended(message);
+        if (onShown != null) {
+            onShown.run();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package uk.ac.wlv.chatapp;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Full-text index over message text and image captions.
+ *
+ * The platform SQLite does not reliably ship FTS5, so this uses FTS4 with prefix indexes. The
+ * index keeps its own copy of the searchable text, keyed by docid = message_id. Triggers on the
+ * message table keep it in sync. Image paths are never indexed, only their captions.
+ */
+final class MessageSearchIndex {
+
+    static final String TABLE_MESSAGE_FTS = "message_fts";
+    private static final String COLUMN_BODY = "body";
+    private static final String COLUMN_CAPTION = "caption";
+
+    // Only the newest matches are ranked, so a very common term cannot force a scan of every hit.
+    private static final int RANKING_CANDIDATES = 500;
+    private static final int SNIPPET_TOKENS = 12;
+
+    private static final String CREATE_FTS_TABLE = "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_MESSAGE_FTS
+            + " USING fts4(" + COLUMN_BODY + ", " + COLUMN_CAPTION + ", prefix=\"2,3\")";
+
+    // Image messages hold a file path in message_content, which is not searchable text.
+    private static final String TEXT_TYPE = String.valueOf(Message.MessageType.TEXT.code);
+
+    private static final String INDEXED_VALUES = "(docid, " + COLUMN_BODY + ", " + COLUMN_CAPTION + ") VALUES ("
+            + "new.message_id, CASE WHEN new.message_type = " + TEXT_TYPE + " THEN new.message_content END, new.message_caption)";
+
+    private static final String[] TRIGGERS = {"message_fts_insert", "message_fts_update", "message_fts_delete"};
+
+    private static final String[] CREATE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS message_fts_insert AFTER INSERT ON message BEGIN "
+                    + "INSERT INTO " + TABLE_MESSAGE_FTS + INDEXED_VALUES + "; END",
+            "CREATE TRIGGER IF NOT EXISTS message_fts_update AFTER UPDATE OF message_content, message_caption, message_type ON message BEGIN "
+                    + "DELETE FROM " + TABLE_MESSAGE_FTS + " WHERE docid = old.message_id; "
+                    + "INSERT INTO " + TABLE_MESSAGE_FTS + INDEXED_VALUES + "; END",
+            "CREATE TRIGGER IF NOT EXISTS message_fts_delete AFTER DELETE ON message BEGIN "
+                    + "DELETE FROM " + TABLE_MESSAGE_FTS + " WHERE docid = old.message_id; END"
+    };
+
+    private MessageSearchIndex() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL(CREATE_FTS_TABLE);
+        for (String trigger : CREATE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    static void drop(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGE_FTS);
+    }
+
+    /**
+     * Re-indexes every message from scratch and recreates the triggers, so ones made for an older
+     * schema are replaced; safe to run again if interrupted.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        for (String trigger : TRIGGERS) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        }
+        create(db);
+        db.execSQL("DELETE FROM " + TABLE_MESSAGE_FTS);
+        db.execSQL("INSERT INTO " + TABLE_MESSAGE_FTS + "(docid, " + COLUMN_BODY + ", " + COLUMN_CAPTION + ") "
+                + "SELECT message_id, CASE WHEN message_type = " + TEXT_TYPE + " THEN message_content END, message_caption "
+                + "FROM message");
+    }
+
+    /**
+     * Turns free text into an FTS query where every word must match as a prefix, or returns
+     * null if there is nothing searchable in it. FTS operators and quotes are dropped.
+     */
+    static String toPrefixQuery(String text) {
+        List<String> tokens = tokenize(text);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String token : tokens) {
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append(token).append('*');
+        }
+        return query.toString();
+    }
+
+    /** Splits text into lower-case words the same way the FTS "simple" tokenizer does. */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && isWordChar(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(foldAscii(text.substring(start, i)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // Like the simple tokenizer, only ASCII letters are case-folded.
+    private static String foldAscii(String token) {
+        char[] chars = token.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] = (char) (chars[i] + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns true if every search token is a prefix of a word in the message, the same rule an
+     * FTS prefix query applies. Lets an already fetched result set be narrowed in memory.
+     */
+    static boolean matches(Message message, List<String> tokens) {
+        List<String> words = new ArrayList<>();
+        if (message.getType() == Message.MessageType.TEXT) {
+            words.addAll(tokenize(message.getContent()));
+        }
+        words.addAll(tokenize(message.getCaption()));
+        for (String token : tokens) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(token)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if every message matching {@code newTokens} also matched {@code oldTokens},
+     * i.e. each old token is a prefix of some new token.
+     */
+    static boolean narrows(List<String> oldTokens, List<String> newTokens) {
+        for (String oldToken : oldTokens) {
+            boolean covered = false;
+            for (String newToken : newTokens) {
+                if (newToken.startsWith(oldToken)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordChar(char c) {
+        // The simple tokenizer treats every non-ASCII character as part of a word.
+        return c >= 128 || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Searches every conversation the user with id {@code userId} takes part in and returns the
+     * best matches with highlighted snippets, highest score first.
+     */
+    static List<SearchResult> search(SQLiteDatabase db, long userId, String text, int limit) {
+        List<SearchResult> results = new ArrayList<>();
+        String query = toPrefixQuery(text);
+        if (query == null) {
+            return results;
+        }
+        String user = String.valueOf(userId);
+        Cursor cursor = db.rawQuery("SELECT m.message_id, s.user_name, r.user_name, m.timestamp, "
+                        + "snippet(" + TABLE_MESSAGE_FTS + ", '[', ']', '…', -1, " + SNIPPET_TOKENS + "), "
+                        + "matchinfo(" + TABLE_MESSAGE_FTS + ", 'pcnx') "
+                        + "FROM " + TABLE_MESSAGE_FTS + " JOIN message m ON m.message_id = " + TABLE_MESSAGE_FTS + ".docid "
+                        + "JOIN user s ON s.user_id = m.sender_id JOIN user r ON r.user_id = m.receiver_id "
+                        + "WHERE " + TABLE_MESSAGE_FTS + " MATCH ? AND (m.sender_id = ? OR m.receiver_id = ?) "
+                        + "ORDER BY " + TABLE_MESSAGE_FTS + ".docid DESC LIMIT " + RANKING_CANDIDATES,
+                new String[]{query, user, user});
+        while (cursor.moveToNext()) {
+            results.add(new SearchResult(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                    cursor.getLong(3), cursor.getString(4), score(cursor.getBlob(5))));
+        }
+        cursor.close();
+        Collections.sort(results, (r1, r2) -> {
+            int byScore = Double.compare(r2.getScore(), r1.getScore());
+            return byScore != 0 ? byScore : Long.compare(r2.getTimestamp(), r1.getTimestamp());
+        });
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * TF-IDF over the 'pcnx' matchinfo blob: phrase count, column count, row count, then per
+     * phrase and column the hits in this row, hits in all rows and rows with at least one hit.
+     */
+    static double score(byte[] matchinfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        int rows = buffer.getInt(8);
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns; c++) {
+                int offset = 12 + (p * columns + c) * 12;
+                int hitsInRow = buffer.getInt(offset);
+                int rowsWithHit = buffer.getInt(offset + 8);
+                if (hitsInRow > 0) {
+                    score += hitsInRow * Math.log((rows + 1.0) / (rowsWithHit + 0.5));
+                }
+            }
+        }
+        return score;
+    }
+}
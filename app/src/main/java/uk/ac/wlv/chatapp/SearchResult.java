@@ -0,0 +1,28 @@
+package uk.ac.wlv.chatapp;
+
+public class SearchResult {
+
+    private final long messageId;
+    private final String sender;
+    private final String receiver;
+    private final long timestamp;
+    // Matched text with the hits wrapped in [brackets].
+    private final String snippet;
+    private final double score;
+
+    public SearchResult(long messageId, String sender, String receiver, long timestamp, String snippet, double score) {
+        this.messageId = messageId;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.timestamp = timestamp;
+        this.snippet = snippet;
+        this.score = score;
+    }
+
+    public long getMessageId() { return messageId; }
+    public String getSender() { return sender; }
+    public String getReceiver() { return receiver; }
+    public long getTimestamp() { return timestamp; }
+    public String getSnippet() { return snippet; }
+    public double getScore() { return score; }
+}
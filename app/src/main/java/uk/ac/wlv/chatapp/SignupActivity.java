@@ -16,7 +16,7 @@ public class SignupActivity extends AppCompatActivity {
     private EditText editTextConfirmPassword;
     private Button buttonSignUp;
     private TextView textViewLogin;
-    private DatabaseHelper databaseHelper;
+    private ChatRepository repository;
     private User user;
 
     @Override
@@ -24,7 +24,7 @@ public class SignupActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_signup);
 
-        databaseHelper = new DatabaseHelper(this);
+        repository = ChatRepository.getInstance(this);
         user = new User();
 
         editTextUsername = findViewById(R.id.editTextUsername);
@@ -52,17 +52,19 @@ public class SignupActivity extends AppCompatActivity {
                     return;
                 }
 
-                // This call will now work correctly
-                if (!databaseHelper.checkUser(username)) {
-                    user.setName(username);
-                    user.setEmail(email);
-                    user.setPassword(password);
-                    databaseHelper.addUser(user);
-                    Toast.makeText(SignupActivity.this, "Registration Successful", Toast.LENGTH_SHORT).show();
-                    finish();
-                } else {
-                    Toast.makeText(SignupActivity.this, "Username already exists", Toast.LENGTH_SHORT).show();
-                }
+                user.setName(username);
+                user.setEmail(email);
+                user.setPassword(password);
+                buttonSignUp.setEnabled(false);
+                repository.registerUser(user, registered -> {
+                    buttonSignUp.setEnabled(true);
+                    if (registered) {
+                        Toast.makeText(SignupActivity.this, "Registration Successful", Toast.LENGTH_SHORT).show();
+                        finish();
+                    } else {
+                        Toast.makeText(SignupActivity.this, "Username already exists", Toast.LENGTH_SHORT).show();
+                    }
+                });
             }
         });
 
@@ -0,0 +1,166 @@
+package uk.ac.wlv.chatapp;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Pre-scaled copies of images, kept in app cache storage so a cold start reads a small file
+ * instead of decoding the multi-megabyte original again.
+ *
+ * Files are named by a hash of the source, its size and modification time, and the target
+ * size, so an edited original or a different view size never hits a stale entry. Writes go to a
+ * temporary file which is synced and then renamed, so a crash never leaves a truncated entry
+ * behind. Reads touch the file's modification time. Once the directory grows past its cap, the
+ * least recently used files are deleted.
+ *
+ * Does disk I/O; call it from a background thread only.
+ */
+final class ThumbnailDiskCache {
+
+    private static final String TAG = "ThumbnailDiskCache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int JPEG_QUALITY = 85;
+    // Part of every key. Bumped when what is stored changes, e.g. v2 stores images upright, so
+    // older entries are never read again and age out under the cap.
+    private static final int FORMAT_VERSION = 2;
+
+    private final File directory;
+    private final long maxBytes;
+    // -1 until the directory has been scanned.
+    private long currentBytes = -1;
+
+    ThumbnailDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the file name for a source version at a target size. */
+    static String key(String source, String sourceVersion, int width, int height) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((FORMAT_VERSION + "\n" + source + '\n' + sourceVersion + '\n' + width + 'x' + height)
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the cached file for {@code key}, marking it recently used, or null on a miss. */
+    @Nullable
+    File get(String key) {
+        File file = new File(directory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /** Drops an entry that turned out to be unreadable. */
+    synchronized void remove(String key) {
+        File file = new File(directory, key);
+        long length = file.length();
+        if (file.delete() && currentBytes >= 0) {
+            currentBytes -= length;
+        }
+    }
+
+    synchronized void put(String key, Bitmap bitmap) {
+        if (!ensureDirectory()) {
+            return;
+        }
+        File target = new File(directory, key);
+        File temp = new File(directory, key + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            // JPEG keeps photo thumbnails small; anything with transparency stays lossless.
+            Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            if (!bitmap.compress(format, JPEG_QUALITY, out)) {
+                throw new IOException("Compress failed");
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail " + key, e);
+            temp.delete();
+            return;
+        }
+        long previousLength = target.length();
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            return;
+        }
+        currentBytes += target.length() - previousLength;
+        trim();
+    }
+
+    // Scans the directory once: sums its size and clears temp files left by a crash mid-write.
+    private boolean ensureDirectory() {
+        if (currentBytes >= 0) {
+            return true;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+            return false;
+        }
+        long total = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                } else {
+                    total += file.length();
+                }
+            }
+        }
+        currentBytes = total;
+        trim();
+        return true;
+    }
+
+    private void trim() {
+        if (currentBytes <= maxBytes) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // get() touches files from other threads while this sorts. Sorting on times read once up
+        // front keeps the order consistent; comparing live times can make the sort throw.
+        long[] lastUsed = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastUsed[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> Long.compare(lastUsed[i1], lastUsed[i2]));
+        // Trim below the cap so the next few writes do not each trigger another scan.
+        long target = maxBytes * 9 / 10;
+        for (int i : order) {
+            File file = files[i];
+            if (currentBytes <= target) {
+                break;
+            }
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                currentBytes -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package uk.ac.wlv.chatapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows an image of any size with pinch zoom and panning, without ever decoding all of it.
+ *
+ * A sample that fits the view is decoded first and always drawn underneath. Once the user zooms
+ * in past what that sample can show sharply, the visible part of the image is covered with tiles
+ * decoded by a {@link BitmapRegionDecoder}, each at the coarsest power-of-two sample that is
+ * still sharp at the current zoom. Tiles live in a cache bounded to a few screens of pixels, so
+ * memory depends on the view size rather than the image size.
+ *
+ * Images are shown upright from their EXIF orientation. Everything the view measures is in the
+ * upright image; a tile is mapped to the stored image only to decode it, and then turned upright.
+ */
+public class TiledImageView extends View {
+
+    private static final String TAG = "TiledImageView";
+    // Edge length of a tile in decoded pixels.
+    private static final int TILE_SIZE = 512;
+    // Tiles kept decoded, measured in screens' worth of pixels.
+    private static final int TILE_CACHE_SCREENS = 3;
+    private static final float MAX_ZOOM_OVER_NATIVE = 2f;
+    private static final float DOUBLE_TAP_ZOOM = 3f;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+
+    private ExecutorService decodeExecutor;
+    private String source;
+    // Bumped on every new image so work for an earlier one is dropped.
+    private int generation;
+
+    // Upright image size in pixels, 0 until known.
+    private int imageWidth;
+    private int imageHeight;
+    // The EXIF orientation, and the image size as stored, which tiles are decoded from.
+    private int orientation;
+    private int storedWidth;
+    private int storedHeight;
+    private Bitmap baseBitmap;
+    private int baseSample;
+    private BitmapRegionDecoder regionDecoder;
+
+    // View pixels per image pixel, and where the image's top-left corner sits in the view.
+    private float scale;
+    private float minScale;
+    private float translateX;
+    private float translateY;
+
+    private LruCache<Long, Bitmap> tileCache;
+    private final Set<Long> pendingTiles = new HashSet<>();
+    // What is on screen, read by the decode thread to skip tiles scrolled away before their turn.
+    private volatile int visibleSample;
+    private volatile Rect visibleRegion = new Rect();
+
+    private final Rect tileRect = new Rect();
+    private final RectF drawRect = new RectF();
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(@NonNull ScaleGestureDetector detector) {
+                zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(@NonNull MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(@Nullable MotionEvent e1, @NonNull MotionEvent e2, float distanceX, float distanceY) {
+                translateX -= distanceX;
+                translateY -= distanceY;
+                clampTranslation();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(@NonNull MotionEvent e) {
+                zoomTo(scale > minScale * 1.01f ? minScale : minScale * DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    /** Shows the image at {@code source}, in any form {@link ImageLoader} accepts. */
+    public void setImage(String source) {
+        this.source = source;
+        releaseImage();
+        if (getWidth() > 0 && getHeight() > 0) {
+            startDecoding();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (source == null) {
+            return;
+        }
+        if (baseBitmap == null) {
+            releaseImage();
+            startDecoding();
+        } else {
+            fitToView();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseImage();
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdown();
+            decodeExecutor = null;
+        }
+    }
+
+    private void releaseImage() {
+        generation++;
+        pendingTiles.clear();
+        if (tileCache != null) {
+            tileCache.evictAll();
+        }
+        baseBitmap = null;
+        imageWidth = 0;
+        imageHeight = 0;
+        final BitmapRegionDecoder decoder = regionDecoder;
+        regionDecoder = null;
+        if (decoder != null && decodeExecutor != null) {
+            // Recycled on the decode thread so a region decode still running there finishes first.
+            decodeExecutor.execute(decoder::recycle);
+        }
+        invalidate();
+    }
+
+    private void startDecoding() {
+        if (decodeExecutor == null) {
+            decodeExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "tile-decode"));
+        }
+        int screenPixels = getWidth() * getHeight();
+        tileCache = new LruCache<Long, Bitmap>(screenPixels * 4 * TILE_CACHE_SCREENS) {
+            @Override
+            protected int sizeOf(Long key, Bitmap tile) {
+                return tile.getAllocationByteCount();
+            }
+        };
+        final int requestGeneration = generation;
+        final String requestSource = source;
+        final int viewWidth = getWidth();
+        final int viewHeight = getHeight();
+        final ImageLoader loader = ImageLoader.getInstance(getContext());
+        decodeExecutor.execute(() -> {
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                try (InputStream in = loader.openStream(requestSource)) {
+                    BitmapFactory.decodeStream(in, null, options);
+                }
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    throw new IOException("Not an image: " + requestSource);
+                }
+                int width = options.outWidth;
+                int height = options.outHeight;
+                int imageOrientation = ImageOrientation.read(loader, requestSource);
+                boolean swapped = ImageOrientation.swapsAxes(imageOrientation);
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = ImageLoader.calculateInSampleSize(swapped ? height : width,
+                        swapped ? width : height, viewWidth, viewHeight);
+                Bitmap base;
+                try (InputStream in = loader.openStream(requestSource)) {
+                    base = BitmapFactory.decodeStream(in, null, options);
+                }
+                if (base == null) {
+                    throw new IOException("Could not decode " + requestSource);
+                }
+                base = ImageOrientation.orient(base, imageOrientation);
+                BitmapRegionDecoder decoder = null;
+                // Only worth having when the sample is coarser than the source; not every format supports it.
+                if (options.inSampleSize > 1) {
+                    try (InputStream in = loader.openStream(requestSource)) {
+                        decoder = newRegionDecoder(in);
+                    } catch (IOException e) {
+                        Log.w(TAG, "No region decoding for " + requestSource, e);
+                    }
+                }
+                final BitmapRegionDecoder regions = decoder;
+                final int sample = options.inSampleSize;
+                final Bitmap upright = base;
+                mainHandler.post(() -> {
+                    if (requestGeneration != generation) {
+                        if (regions != null) {
+                            regions.recycle();
+                        }
+                        return;
+                    }
+                    orientation = imageOrientation;
+                    storedWidth = width;
+                    storedHeight = height;
+                    imageWidth = swapped ? height : width;
+                    imageHeight = swapped ? width : height;
+                    baseBitmap = upright;
+                    baseSample = sample;
+                    regionDecoder = regions;
+                    fitToView();
+                });
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to load " + requestSource, e);
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation")
+    private static BitmapRegionDecoder newRegionDecoder(InputStream in) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return BitmapRegionDecoder.newInstance(in);
+        }
+        return BitmapRegionDecoder.newInstance(in, false);
+    }
+
+    // --- Zoom and pan ---
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (baseBitmap == null) {
+            return super.onTouchEvent(event);
+        }
+        scaleDetector.onTouchEvent(event);
+        gestureDetector.onTouchEvent(event);
+        // Keep the parent from stealing a pan while zoomed in.
+        getParent().requestDisallowInterceptTouchEvent(scale > minScale * 1.01f);
+        return true;
+    }
+
+    private void fitToView() {
+        minScale = Math.min((float) getWidth() / imageWidth, (float) getHeight() / imageHeight);
+        scale = minScale;
+        clampTranslation();
+        invalidate();
+    }
+
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        float maxScale = Math.max(minScale, MAX_ZOOM_OVER_NATIVE);
+        newScale = Math.max(minScale, Math.min(newScale, maxScale));
+        // Keep the source pixel under the focus point where it is.
+        translateX = focusX - (focusX - translateX) * newScale / scale;
+        translateY = focusY - (focusY - translateY) * newScale / scale;
+        scale = newScale;
+        clampTranslation();
+        invalidate();
+    }
+
+    // Centres an axis that fits in the view, and otherwise stops the image edge at the view edge.
+    private void clampTranslation() {
+        float scaledWidth = imageWidth * scale;
+        float scaledHeight = imageHeight * scale;
+        translateX = scaledWidth <= getWidth() ? (getWidth() - scaledWidth) / 2
+                : Math.max(getWidth() - scaledWidth, Math.min(0, translateX));
+        translateY = scaledHeight <= getHeight() ? (getHeight() - scaledHeight) / 2
+                : Math.max(getHeight() - scaledHeight, Math.min(0, translateY));
+    }
+
+    // --- Drawing ---
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        if (baseBitmap == null) {
+            return;
+        }
+        drawRect.set(translateX, translateY, translateX + imageWidth * scale, translateY + imageHeight * scale);
+        canvas.drawBitmap(baseBitmap, null, drawRect, bitmapPaint);
+
+        // The coarsest power-of-two sample that still gives at least one decoded pixel per screen pixel.
+        int sample = 1;
+        while (sample * 2 * scale <= 1) {
+            sample *= 2;
+        }
+        if (regionDecoder == null || sample >= baseSample) {
+            return;
+        }
+
+        Rect visible = new Rect(
+                Math.max(0, (int) (-translateX / scale)),
+                Math.max(0, (int) (-translateY / scale)),
+                Math.min(imageWidth, (int) Math.ceil((getWidth() - translateX) / scale)),
+                Math.min(imageHeight, (int) Math.ceil((getHeight() - translateY) / scale)));
+        visibleRegion = visible;
+        visibleSample = sample;
+
+        int tileSpan = TILE_SIZE * sample;
+        for (int row = visible.top / tileSpan; row * tileSpan < visible.bottom; row++) {
+            for (int col = visible.left / tileSpan; col * tileSpan < visible.right; col++) {
+                long key = tileKey(sample, col, row);
+                Bitmap tile = tileCache.get(key);
+                tileBounds(col, row, tileSpan, tileRect);
+                if (tile != null) {
+                    drawRect.set(translateX + tileRect.left * scale, translateY + tileRect.top * scale,
+                            translateX + tileRect.right * scale, translateY + tileRect.bottom * scale);
+                    canvas.drawBitmap(tile, null, drawRect, bitmapPaint);
+                } else if (pendingTiles.add(key)) {
+                    int[] stored = ImageOrientation.toStored(orientation, storedWidth, storedHeight,
+                            tileRect.left, tileRect.top, tileRect.right, tileRect.bottom);
+                    requestTile(key, new Rect(tileRect), new Rect(stored[0], stored[1], stored[2], stored[3]), sample);
+                }
+            }
+        }
+    }
+
+    private void tileBounds(int col, int row, int tileSpan, Rect out) {
+        out.set(col * tileSpan, row * tileSpan,
+                Math.min(imageWidth, (col + 1) * tileSpan), Math.min(imageHeight, (row + 1) * tileSpan));
+    }
+
+    private static long tileKey(int sample, int col, int row) {
+        return ((long) sample << 48) | ((long) col << 24) | row;
+    }
+
+    // region is where the tile sits in the upright image; storedRegion is the same pixels as stored.
+    private void requestTile(long key, Rect region, Rect storedRegion, int sample) {
+        final int requestGeneration = generation;
+        final int tileOrientation = orientation;
+        final BitmapRegionDecoder decoder = regionDecoder;
+        decodeExecutor.execute(() -> {
+            Bitmap tile = null;
+            // Skip tiles the user zoomed or scrolled away from while they waited.
+            if (sample == visibleSample && Rect.intersects(region, visibleRegion) && !decoder.isRecycled()) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sample;
+                tile = decoder.decodeRegion(storedRegion, options);
+                if (tile != null) {
+                    tile = ImageOrientation.orient(tile, tileOrientation);
+                }
+            }
+            final Bitmap decoded = tile;
+            mainHandler.post(() -> {
+                if (requestGeneration != generation) {
+                    return;
+                }
+                pendingTiles.remove(key);
+                if (decoded != null) {
+                    tileCache.put(key, decoded);
+                }
+                // Also after a skip, in case the tile came back into view while it was queued.
+                invalidate();
+            });
+        });
+    }
+}
@@ -0,0 +1,16 @@
+package uk.ac.wlv.chatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageIngestorTest {
+
+    @Test
+    public void sampleSizeFor_keepsLongerSideAtLeastMaxDimension() {
+        // 48MP capture: 8000 / 4 = 2000 still covers 1600, 8000 / 8 = 1000 would not.
+        assertEquals(4, ImageIngestor.sampleSizeFor(8000, 6000, 1600));
+        assertEquals(4, ImageIngestor.sampleSizeFor(6000, 8000, 1600));
+        assertEquals(1, ImageIngestor.sampleSizeFor(1200, 900, 1600));
+    }
+}
@@ -0,0 +1,16 @@
+package uk.ac.wlv.chatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageLoaderTest {
+
+    @Test
+    public void calculateInSampleSize_staysAtLeastAsLargeAsTheTarget() {
+        // A 12MP camera photo shown in a 250dp (~690px) bubble.
+        assertEquals(4, ImageLoader.calculateInSampleSize(4000, 3000, 690, 690));
+        assertEquals(1, ImageLoader.calculateInSampleSize(600, 600, 690, 690));
+        assertEquals(2, ImageLoader.calculateInSampleSize(1380, 1380, 690, 690));
+    }
+}
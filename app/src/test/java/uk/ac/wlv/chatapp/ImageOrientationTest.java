@@ -0,0 +1,47 @@
+package uk.ac.wlv.chatapp;
+
+import android.media.ExifInterface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageOrientationTest {
+
+    // A 4000x3000 landscape capture whose EXIF says to show it as a 3000x4000 portrait.
+    private static final int STORED_WIDTH = 4000;
+    private static final int STORED_HEIGHT = 3000;
+
+    @Test
+    public void toStored_mapsUprightTilesOfARotatedCapture() {
+        // The upright top-left corner is the stored bottom-left corner, turned a quarter clockwise.
+        assertArrayEquals(new int[]{0, 2488, 512, 3000}, ImageOrientation.toStored(
+                ExifInterface.ORIENTATION_ROTATE_90, STORED_WIDTH, STORED_HEIGHT, 0, 0, 512, 512));
+        // The upright bottom-right corner is the stored top-right corner.
+        assertArrayEquals(new int[]{3488, 0, 4000, 512}, ImageOrientation.toStored(
+                ExifInterface.ORIENTATION_ROTATE_90, STORED_WIDTH, STORED_HEIGHT, 2488, 3488, 3000, 4000));
+        assertArrayEquals(new int[]{3488, 0, 4000, 512}, ImageOrientation.toStored(
+                ExifInterface.ORIENTATION_ROTATE_270, STORED_WIDTH, STORED_HEIGHT, 0, 0, 512, 512));
+        assertArrayEquals(new int[]{3488, 2488, 4000, 3000}, ImageOrientation.toStored(
+                ExifInterface.ORIENTATION_ROTATE_180, STORED_WIDTH, STORED_HEIGHT, 0, 0, 512, 512));
+        assertArrayEquals(new int[]{0, 0, 512, 512}, ImageOrientation.toStored(
+                ExifInterface.ORIENTATION_NORMAL, STORED_WIDTH, STORED_HEIGHT, 0, 0, 512, 512));
+    }
+
+    @Test
+    public void toStored_keepsEveryTileInsideTheStoredImage() {
+        for (int orientation = ExifInterface.ORIENTATION_NORMAL;
+             orientation <= ExifInterface.ORIENTATION_ROTATE_270; orientation++) {
+            boolean swapped = ImageOrientation.swapsAxes(orientation);
+            int uprightWidth = swapped ? STORED_HEIGHT : STORED_WIDTH;
+            int uprightHeight = swapped ? STORED_WIDTH : STORED_HEIGHT;
+            int[] stored = ImageOrientation.toStored(orientation, STORED_WIDTH, STORED_HEIGHT,
+                    uprightWidth - 300, 100, uprightWidth, 612);
+            assertTrue(stored[0] >= 0 && stored[1] >= 0);
+            assertTrue(stored[2] <= STORED_WIDTH && stored[3] <= STORED_HEIGHT);
+            // A turned tile is as wide as the upright one is tall.
+            assertEquals(swapped ? 512 : 300, stored[2] - stored[0]);
+            assertEquals(swapped ? 300 : 512, stored[3] - stored[1]);
+        }
+    }
+}
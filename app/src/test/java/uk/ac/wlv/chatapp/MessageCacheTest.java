@@ -0,0 +1,109 @@
+package uk.ac.wlv.chatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCacheTest {
+
+    private static final int LIMIT = 3;
+
+    @Test
+    public void append_keepsOnlyTheNewestPage() {
+        MessageCache cache = new MessageCache(8, Integer.MAX_VALUE);
+        cache.put(1L, page(1, 2, 3), LIMIT, cache.version());
+
+        cache.append(1L, message(4));
+        cache.append(1L, message(4));
+
+        List<Message> cached = cache.get(1L, LIMIT);
+        assertEquals(3, cached.size());
+        assertEquals(2, cached.get(0).getId());
+        assertEquals(4, cached.get(2).getId());
+    }
+
+    @Test
+    public void put_isIgnoredIfAWriteRanDuringTheRead() {
+        MessageCache cache = new MessageCache(8, Integer.MAX_VALUE);
+        long version = cache.version();
+        cache.updateContent(1, "edited");
+
+        cache.put(1L, page(1, 2), LIMIT, version);
+
+        assertNull(cache.get(1L, LIMIT));
+    }
+
+    @Test
+    public void writes_reachTheCachedCopyButNotTheCallersMessages() {
+        MessageCache cache = new MessageCache(8, Integer.MAX_VALUE);
+        List<Message> shown = page(1, 2);
+        cache.put(1L, shown, LIMIT, cache.version());
+
+        shown.get(0).setContent("changed on screen");
+        cache.updateContent(2, "edited");
+
+        List<Message> cached = cache.get(1L, LIMIT);
+        assertEquals("message 1", cached.get(0).getContent());
+        assertEquals("edited", cached.get(1).getContent());
+        assertEquals("message 2", shown.get(1).getContent());
+    }
+
+    @Test
+    public void removeMessages_dropsThePageHoldingThem() {
+        MessageCache cache = new MessageCache(8, Integer.MAX_VALUE);
+        cache.put(1L, page(1, 2), LIMIT, cache.version());
+        cache.put(2L, page(3, 4), LIMIT, cache.version());
+
+        cache.removeMessages(Collections.singletonList(3L));
+
+        assertNotNull(cache.get(1L, LIMIT));
+        assertNull(cache.get(2L, LIMIT));
+        assertEquals(MessageCache.sizeOf(message(1)) + MessageCache.sizeOf(message(2)), cache.sizeBytes());
+    }
+
+    @Test
+    public void eviction_dropsTheLeastRecentlyUsedConversation() {
+        int pageBytes = MessageCache.sizeOf(message(1)) * 2;
+        MessageCache cache = new MessageCache(8, pageBytes * 2);
+        cache.put(1L, page(1, 2), LIMIT, cache.version());
+        cache.put(2L, page(3, 4), LIMIT, cache.version());
+        cache.get(1L, LIMIT);
+
+        cache.put(3L, page(5, 6), LIMIT, cache.version());
+
+        assertNotNull(cache.get(1L, LIMIT));
+        assertNull(cache.get(2L, LIMIT));
+        assertNotNull(cache.get(3L, LIMIT));
+        assertTrue(cache.sizeBytes() <= pageBytes * 2);
+    }
+
+    @Test
+    public void eviction_capsTheNumberOfConversations() {
+        MessageCache cache = new MessageCache(2, Integer.MAX_VALUE);
+        cache.put(1L, page(1), LIMIT, cache.version());
+        cache.put(2L, page(2), LIMIT, cache.version());
+        cache.put(3L, page(3), LIMIT, cache.version());
+
+        assertNull(cache.get(1L, LIMIT));
+        assertNotNull(cache.get(2L, LIMIT));
+        assertNotNull(cache.get(3L, LIMIT));
+    }
+
+    private static List<Message> page(long... ids) {
+        List<Message> page = new ArrayList<>();
+        for (long id : ids) {
+            page.add(message(id));
+        }
+        return page;
+    }
+
+    private static Message message(long id) {
+        Message message = new Message("message " + id, "alice", "bob", id, Message.MessageType.TEXT);
+        message.setId(id);
+        return message;
+    }
+}
@@ -0,0 +1,37 @@
+package uk.ac.wlv.chatapp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MessageSearchIndexTest {
+
+    @Test
+    public void tokenize_splitsOnPunctuationAndFoldsAsciiCase() {
+        assertEquals(Arrays.asList("hello", "world", "42"), MessageSearchIndex.tokenize("Hello, WORLD! 42"));
+    }
+
+    @Test
+    public void toPrefixQuery_dropsOperatorsAndQuotes() {
+        assertEquals("see* you* later*", MessageSearchIndex.toPrefixQuery("\"see\" you -later*"));
+        assertNull(MessageSearchIndex.toPrefixQuery(" *\"- "));
+    }
+
+    @Test
+    public void score_prefersRarerTerms() {
+        assertTrue(MessageSearchIndex.score(matchinfo(100, 1, 1, 2))
+                > MessageSearchIndex.score(matchinfo(100, 1, 1, 80)));
+        assertEquals(0, MessageSearchIndex.score(matchinfo(100, 1, 0, 80)), 0);
+    }
+
+    // One phrase, one column: p, c, n, then hits in row, hits in all rows, rows with a hit.
+    private static byte[] matchinfo(int rows, int phrases, int hitsInRow, int rowsWithHit) {
+        ByteBuffer buffer = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+        buffer.putInt(phrases).putInt(1).putInt(rows).putInt(hitsInRow).putInt(rowsWithHit).putInt(rowsWithHit);
+        return buffer.array();
+    }
+}
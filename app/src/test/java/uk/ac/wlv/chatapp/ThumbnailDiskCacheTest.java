@@ -0,0 +1,17 @@
+package uk.ac.wlv.chatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailDiskCacheTest {
+
+    @Test
+    public void key_changesWithSourceVersionAndSize() {
+        String key = ThumbnailDiskCache.key("file:///photo.jpg", "2048:100", 690, 690);
+        assertEquals(key, ThumbnailDiskCache.key("file:///photo.jpg", "2048:100", 690, 690));
+        assertNotEquals(key, ThumbnailDiskCache.key("file:///photo.jpg", "2048:200", 690, 690));
+        assertNotEquals(key, ThumbnailDiskCache.key("file:///photo.jpg", "2048:100", 350, 350));
+        assertTrue(key.matches("[0-9a-f]{64}"));
+    }
+}